@@ -0,0 +1,275 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedTransferQueue;
+
+/** アクター, つまり自分専用のインタープリタとメールボックスを持つスレッド.
+ * (spawn fn) は新しい Interp を作り，そこで引数のない関数 fn を
+ * 仮想スレッド (Java 21 より前ではデーモン・スレッド) で実行する。
+ * 新しい Interp の大域変数は，生みの親の大域変数の複製から始まる。
+ * データは複製し，クロージャは捕捉した変数のフレームごと複製するから，
+ * アクター同士が大域変数やクロージャを通して干渉することはなく，
+ * 一つのアクターの失敗が他を壊すこともない。
+ * ただし，まだ果たされていない約束は，それが捕捉した変数とともに
+ * 共有する (copy 参照)。
+ * <p>
+ * アクター間の値の受け渡しは (send a x) と (receive) でする。
+ * 送った値は copy で複製されるから，受け手は送り手とデータを共有しない。
+ * アクターでないスレッドも (self) や (receive) を使ってよい。
+ * そのときはそのスレッドに結び付いたメールボックスが作られる。
+ */
+public final class Actor
+{
+    private static final ThreadLocal<Actor> CURRENT
+        = new ThreadLocal<Actor> ();
+
+    // メールボックス (待つときは LockSupport.park を使う)
+    private final LinkedTransferQueue<Object> mailbox
+        = new LinkedTransferQueue<Object> ();
+    // 関数の値 (複製済み) またはその失敗
+    private final CompletableFuture<Object> done
+        = new CompletableFuture<Object> ();
+
+    private Actor () {}
+
+    /** (spawn fn) の実装
+     * @param fn 新しいアクターで実行する引数のない関数
+     * @param parent 生みの親のインタープリタ
+     * @return 新しいアクター
+     */
+    static Actor spawn(final Function fn, IInterp parent) {
+        final Actor a = new Actor ();
+        final Interp child = new Interp (null, parent.getWriter());
+        Map<Symbol, Object> symbols = child.getSymbolTable();
+        IdentityHashMap<Object, Object> copied
+            = new IdentityHashMap<Object, Object> ();
+        for (Map.Entry<Symbol, Object> e:
+                 parent.getSymbolTable().entrySet())
+            symbols.put(e.getKey(), copy(e.getValue(), copied));
+        Runnable r = new Runnable () {
+                public void run() {
+                    CURRENT.set(a);
+                    try {
+                        Object x = fn.apply(null, child, null);
+                        a.done.complete(copy(x));
+                    } catch (Throwable ex) { // スタック溢れ等も親に伝える。
+                        a.done.completeExceptionally(ex);
+                    } finally {
+                        CURRENT.remove();
+                    }
+                }
+            };
+        LL.newThread(r, true, "l2lisp-actor").start();
+        return a;
+    }
+
+    /** 現在のスレッドのアクターを返す。
+     * アクターでないスレッドならば，そのスレッドのアクターを作る。
+     */
+    static Actor self() {
+        Actor a = CURRENT.get();
+        if (a == null) {
+            a = new Actor ();
+            CURRENT.set(a);
+        }
+        return a;
+    }
+
+    /** 値の複製をメールボックスに入れる。待つことはない。
+     * @param x 送る値
+     */
+    public void send(Object x) {
+        mailbox.add(copy(x));
+    }
+
+    /** (receive) の実装
+     * 現在のスレッドのメールボックスから値を一つ取り出す。
+     * 空ならば値が来るまで待つ。
+     */
+    static Object receive() {
+        try {
+            return self().mailbox.take();
+        } catch (InterruptedException ex) {
+            throw new EvalException ("interrupted");
+        }
+    }
+
+    /** アクターの関数が終わるまで待ち，その値を返す。
+     * @return 関数の値の複製
+     * @throws EvalException 関数が失敗した。
+     */
+    public Object join() throws EvalException {
+        try {
+            return done.get();
+        } catch (InterruptedException ex) {
+            throw new EvalException ("interrupted");
+        } catch (ExecutionException ex) {
+            Throwable e = ex.getCause();
+            String s = (e instanceof EvalException) ? e.getMessage() :
+                e.toString();
+            throw new EvalException ("actor failed: " + s);
+        }
+    }
+
+    @Override public String toString() {
+        return String.format("#<actor:%x>", hashCode());
+    }
+
+    /** アクター間で渡すために値を複製する。
+     * リスト，ベクトル，構造体等は中身ごと複製し，共有と循環も保つ。
+     * クロージャは，捕捉した変数のフレームを複製したクロージャとする。
+     * 果たされた約束はその値として複製する。まだ果たされていない約束，
+     * 数，文字列，シンボル，クロージャでない関数，アトム，チャネル，
+     * アクターその他の Java オブジェクトは共有する。
+     * @param x 任意の Lisp 値
+     * @return x の複製
+     */
+    public static Object copy(Object x) {
+        return copy(x, new IdentityHashMap<Object, Object> ());
+    }
+
+    private static Object copy(Object x,
+                               IdentityHashMap<Object, Object> seen) {
+        if (x instanceof Promise) {
+            Object v = ((Promise) x).value();
+            if (v == x)
+                return x;
+            x = v;
+        }
+        if (x == null || x instanceof Number || x instanceof String ||
+            x instanceof Symbol)
+            return x;
+        Object y = seen.get(x);
+        if (y != null)
+            return y;
+        if (x instanceof Function) {
+            Cell env = Interp.getClosureEnv(x);
+            return (env == null) ? x : copyClosure(x, env, seen);
+        } else if (x instanceof Cell) {
+            return copyList((Cell) x, seen);
+        } else if (x instanceof Object[]) {
+            Object[] a = (Object[]) x;
+            Object[] b = new Object[a.length];
+            seen.put(a, b);
+            for (int i = 0; i < a.length; i++)
+                b[i] = copy(a[i], seen);
+            return b;
+        } else if (x instanceof AdjustableVector) {
+            AdjustableVector v = (AdjustableVector) x;
+            AdjustableVector w = new AdjustableVector (v.capacity());
+            seen.put(v, w);
+            for (int i = 0; i < v.size(); i++)
+                w.push(copy(v.get(i), seen));
+            return w;
+        } else if (x instanceof Struct) {
+            Struct s = (Struct) x;
+            Object[] slots = new Object[s.slots.length];
+            Struct t = new Struct (s.type, slots);
+            seen.put(s, t);
+            for (int i = 0; i < slots.length; i++)
+                slots[i] = copy(s.slots[i], seen);
+            return t;
+        } else if (x instanceof StringBuilder) {
+            return new StringBuilder ((StringBuilder) x);
+        } else if (x instanceof int[]) {
+            return ((int[]) x).clone();
+        } else if (x instanceof long[]) {
+            return ((long[]) x).clone();
+        } else if (x instanceof double[]) {
+            return ((double[]) x).clone();
+        } else if (x instanceof byte[]) {
+            return ((byte[]) x).clone();
+        } else if (x instanceof char[]) {
+            return ((char[]) x).clone();
+        } else {
+            return x;
+        }
+    }
+
+    // クロージャを環境ごと複製する。フレームが自分自身を含みうるから，
+    // 環境の骨組みを作ってクロージャを登録した後にフレームの中身を写す。
+    private static Object copyClosure(Object x, Cell env,
+                                      IdentityHashMap<Object, Object> seen) {
+        ArrayList<Object[]> pending = new ArrayList<Object[]> ();
+        Cell head = new Cell (null, null);
+        Cell dst = head;
+        for (Cell e = env; e != null; e = (Cell) e.cdr) {
+            Object y = seen.get(e);
+            if (y != null) {    // 他のクロージャと共有する外側の環境
+                dst.cdr = y;
+                break;
+            }
+            Object f = e.car;
+            Object g = null;
+            if (f != null) {
+                g = seen.get(f);
+                if (g == null) {
+                    Object[] a = (Object[]) f;
+                    g = new Object[a.length];
+                    seen.put(f, g);
+                    pending.add(a);
+                    pending.add((Object[]) g);
+                }
+            }
+            Cell c = new Cell (g, null);
+            seen.put(e, c);
+            dst.cdr = c;
+            dst = c;
+        }
+        Object z = Interp.withClosureEnv(x, (Cell) head.cdr);
+        seen.put(x, z);
+        for (int i = 0; i < pending.size(); i += 2) {
+            Object[] src = pending.get(i);
+            Object[] to = pending.get(i + 1);
+            for (int j = 0; j < src.length; j++)
+                to[j] = copy(src[j], seen);
+        }
+        return z;
+    }
+
+    // リストを cdr の方向に反復して複製する。
+    private static Object copyList(Cell list,
+                                   IdentityHashMap<Object, Object> seen) {
+        Cell head = new Cell (null, null);
+        seen.put(list, head);
+        Cell src = list;
+        Cell dst = head;
+        for (;;) {
+            dst.car = copy(src.car, seen);
+            Object d = src.cdr;
+            if (d instanceof Promise) {
+                Object v = ((Promise) d).value();
+                if (v != d)
+                    d = v;
+            }
+            if (d instanceof Cell.Compact) {
+                Cell.Compact c = (Cell.Compact) d;
+                Object[] a = new Object[c.elements.length - c.index];
+                for (int i = 0; i < a.length; i++)
+                    a[i] = copy(c.elements[c.index + i], seen);
+                dst.cdr = new Cell.Compact (a, 0);
+                return head;
+            } else if (d instanceof Cell.Tail) {
+                d = ((Cell.Tail) d).get(src);
+            }
+            if (d instanceof Cell) {
+                Object y = seen.get(d);
+                if (y != null) {
+                    dst.cdr = y;
+                    return head;
+                }
+                Cell c = new Cell (null, null);
+                seen.put(d, c);
+                dst.cdr = c;
+                src = (Cell) d;
+                dst = c;
+            } else {
+                dst.cdr = copy(d, seen);
+                return head;
+            }
+        }
+    }
+} // Actor
@@ -0,0 +1,177 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+
+/** 伸長可能なベクトル.
+ * フィル・ポインタまでの要素だけを持つものとして振る舞う。
+ * 容量が足りなくなったら幾何級数的に拡大するから，
+ * 末尾への追加は償却 O(1) である。
+ */
+public final class AdjustableVector implements Iterable
+{
+    private Object[] elements;
+    private int fillPointer;
+
+    /** 空のベクトルがとる最小の容量 */
+    private static final int MIN_CAPACITY = 8;
+
+    /** 容量を指定して，要素数 0 で構築する。
+     * @param capacity 最初に確保する容量
+     */
+    public AdjustableVector (int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException ("capacity: " + capacity);
+        elements = new Object[capacity];
+        fillPointer = 0;
+    }
+
+    /** 既存の要素の並びから構築する。引数はコピーされる。
+     * @param elements 最初の要素の並び
+     */
+    public AdjustableVector (Object[] elements) {
+        this.elements = elements.clone();
+        fillPointer = elements.length;
+    }
+
+    /** 要素数，つまりフィル・ポインタを返す。
+     * @return 有効な要素の個数
+     */
+    public int size() {
+        return fillPointer;
+    }
+
+    /** 現在確保している容量を返す。
+     * @return 再確保なしに格納できる要素の個数
+     */
+    public int capacity() {
+        return elements.length;
+    }
+
+    /** index 番目の要素を返す。
+     * @param index 0 以上 size() 未満の添字
+     * @return 要素の値
+     * @throws IndexOutOfBoundsException 添字が範囲外だった。
+     */
+    public Object get(int index) {
+        checkIndex(index);
+        return elements[index];
+    }
+
+    /** index 番目の要素を置き換える。
+     * @param index 0 以上 size() 未満の添字
+     * @param value 新しい要素の値
+     * @throws IndexOutOfBoundsException 添字が範囲外だった。
+     */
+    public void set(int index, Object value) {
+        checkIndex(index);
+        elements[index] = value;
+    }
+
+    /** 末尾に要素を追加する。必要ならば容量を拡大する。
+     * @param value 追加する値
+     * @return 追加した要素の添字
+     */
+    public int push(Object value) {
+        if (fillPointer == elements.length)
+            grow(fillPointer + 1);
+        elements[fillPointer] = value;
+        return fillPointer++;
+    }
+
+    /** 末尾の要素を取り除いて返す。
+     * @return 取り除いた要素の値
+     * @throws EvalException 要素がなかった。
+     */
+    public Object pop() {
+        if (fillPointer == 0)
+            throw new EvalException ("vector is empty");
+        fillPointer--;
+        Object value = elements[fillPointer];
+        elements[fillPointer] = null; // 資源回収に協力する
+        return value;
+    }
+
+    /** フィル・ポインタを設定する。
+     * 容量を超えない範囲で要素数を増減させる。
+     * 増やしたときの新しい要素は，以前に格納された値か nil である。
+     * @param n 新しい要素数
+     * @throws IndexOutOfBoundsException n が 0 未満か容量を超えた。
+     */
+    public void setFillPointer(int n) {
+        if (n < 0 || n > elements.length)
+            throw new IndexOutOfBoundsException ("fill pointer: " + n);
+        fillPointer = n;
+    }
+
+    /** 少なくとも capacity 個の要素を再確保なしに格納できるようにする。
+     * @param capacity 必要な容量
+     */
+    public void reserve(int capacity) {
+        if (capacity > elements.length)
+            grow(capacity);
+    }
+
+    /** 有効な要素を並べた Object の配列を新しく作る。
+     * @return 要素のコピー
+     */
+    public Object[] toArray() {
+        return Arrays.copyOf(elements, fillPointer);
+    }
+
+    /** 内部の配列を返す。有効な要素は先頭から size() 個だけである。
+     */
+    Object[] array() {
+        return elements;
+    }
+
+    /** 要素を先頭から順に与えるイテレータを作る。
+     */
+    public Iterator iterator() {
+        return new Iterator () {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < fillPointer;
+            }
+
+            public Object next() {
+                if (i < fillPointer)
+                    return elements[i++];
+                else
+                    throw new NoSuchElementException ();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException ();
+            }
+        };
+    }
+
+    /** 要素を与える，大きさの分かる Spliterator を作る。
+     */
+    @Override public Spliterator spliterator() {
+        return Spliterators.spliterator(elements, 0, fillPointer,
+                                        Spliterator.ORDERED);
+    }
+
+    /** Lisp のベクトルとしての文字列表現を返す。
+     */
+    @Override public String toString() {
+        return LL.str(this);
+    }
+
+    // 容量を現在の約 1.5 倍か，必要な容量のいずれか大きい方に拡大する。
+    private void grow(int minCapacity) {
+        int n = elements.length;
+        int newCapacity = Math.max(n + (n >> 1), MIN_CAPACITY);
+        if (newCapacity < minCapacity)
+            newCapacity = minCapacity;
+        elements = Arrays.copyOf(elements, newCapacity);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= fillPointer)
+            throw new IndexOutOfBoundsException ("index: " + index);
+    }
+} // AdjustableVector
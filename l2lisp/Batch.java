@@ -0,0 +1,116 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/** 互いに独立な多数のスクリプトを並列に評価するバッチ実行器.
+ * 組込み関数と Prelude を読み込んだインタープリタを一つ作り，
+ * 各ファイルをそれを Interp.fork したインタープリタで評価する。
+ * だから一つのファイルの setq や defun は他のファイルに見えない。
+ * <p>
+ * 評価は指定した数のワーカ・スレッドで並列に行う。各ファイルの出力は
+ * それぞれの書き込み器にためておき，コマンド行引数の順に標準出力へ
+ * 書き出す。その後，ファイルごとの終了状態と所要時間を標準エラー出力に
+ * 報告する。(exit i) は JVM を終了せず，そのファイルの評価を
+ * 終了状態 i で終える。
+ */
+final class Batch
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Batch () {}
+
+    /** ファイルを並列に評価する。
+     * @param fnames スクリプトのファイル名の並び
+     * @param jobs ワーカ・スレッドの数
+     * @return 全ファイルが終了状態 0 ならば 0，さもなくば 1
+     * @throws IOException Prelude を読めなかった。
+     */
+    static int run(String[] fnames, int jobs) throws IOException {
+        long t0 = System.nanoTime();
+        Interp base = new Interp (new LinesFromString (""), null);
+        LL.loadPrelude(base);
+        base.load(Server.SCRIPT_FUNCTIONS);
+
+        ExecutorService workers = Executors.newFixedThreadPool
+            (jobs, new ThreadFactory () {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread (r, "l2lisp-batch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        Job[] js = new Job[fnames.length];
+        List<Future<?>> futures = new ArrayList<Future<?>> ();
+        for (int i = 0; i < fnames.length; i++) {
+            js[i] = new Job (fnames[i], base);
+            futures.add(workers.submit(js[i]));
+        }
+        int failed = 0;
+        for (int i = 0; i < js.length; i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException (ex);
+            } catch (ExecutionException ex) { // Job#run は何も送出しない。
+                throw new RuntimeException ("Impossible!", ex);
+            }
+            System.out.print(js[i].out);
+            System.out.flush();
+            if (js[i].status != 0)
+                failed++;
+        }
+        workers.shutdown();
+
+        for (Job j: js) {
+            System.err.print(j.err);
+            System.err.printf("%s: %s %d ms%n", j.fname,
+                              (j.status == 0) ? "ok" : "exit " + j.status,
+                              j.nanos / 1000000);
+        }
+        System.err.printf("%d files, %d failed, %d jobs, %d ms%n",
+                          js.length, failed, jobs,
+                          (System.nanoTime() - t0) / 1000000);
+        return (failed == 0) ? 0 : 1;
+    }
+
+
+    /** 一つのファイルの評価 */
+    private static final class Job implements Runnable
+    {
+        final String fname;
+        private final Interp base;
+        final StringWriter out = new StringWriter ();
+        final StringWriter err = new StringWriter ();
+        int status = 0;         // Future#get の後で読む。
+        long nanos = 0;
+
+        Job (String fname, Interp base) {
+            this.fname = fname;
+            this.base = base;
+        }
+
+        public void run() {
+            long t0 = System.nanoTime();
+            PrintWriter pw = new PrintWriter (out);
+            try {
+                Interp interp = base.fork(null, pw);
+                interp.run(new LinesFromInputStream
+                           (new FileInputStream (fname)), null);
+            } catch (Server.Exit ex) {
+                status = ex.status;
+            } catch (Throwable ex) { // 入出力例外，EvalException，スタック溢れ等
+                err.write(fname + ": " + ex + "\n");
+                status = 1;
+            } finally {
+                pw.flush();
+                nanos = System.nanoTime() - t0;
+            }
+        }
+    } // Job
+} // Batch
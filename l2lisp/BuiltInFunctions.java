@@ -1,8 +1,9 @@
-// H22.8/18, H30.4/8 (鈴)
+// H22.8/18, H30.4/8, R8.10/19 (鈴)
 package l2lisp;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.BaseStream;
 import java.math.BigInteger;
 import java.lang.reflect.Field;
 
@@ -14,6 +15,25 @@ public class BuiltInFunctions
     /** このクラスはインスタンスを作らない。*/
     private BuiltInFunctions () {}
 
+    /** 組込みの &lt; 関数。sort はこれを特別扱いする。*/
+    static final Callable NUMBER_LESS = new Callable ("<", 2) {
+            { doc = "算術比較 (< a b): a < b か？"; }
+            public Object call(Object[] a) {
+                return (compare((Number) a[0], (Number) a[1]) < 0) ?
+                    LL.S_T : null;
+            }
+        };
+
+    /** 組込みの string&lt; 関数。sort はこれを特別扱いする。*/
+    static final Callable STRING_LESS = new Callable ("string<", 2) {
+            { doc = "(string< s1 s2) => s1 が辞書順で s2 より前か？"; }
+            public Object call(Object[] a) {
+                String s1 = asString(a[0]);
+                String s2 = asString(a[1]);
+                return (s1.compareTo(s2) < 0) ? LL.S_T : null;
+            }
+        };
+
     /** 組込み Lisp 関数からなる配列 */
     public static final Callable[] FUNCTIONS = new Callable[] {
         new Callable ("car", 1) {
@@ -26,7 +46,7 @@ public class BuiltInFunctions
         new Callable ("cdr", 1) {
             { doc = "(cdr '(a b c)) => (b c); (cdr nil) => nil"; }
             public Object call(Object[] a) {
-                return (a[0] == null) ? null : ((Cell) a[0]).cdr;
+                return (a[0] == null) ? null : ((Cell) a[0]).getCdr();
             }
         },
 
@@ -52,9 +72,11 @@ public class BuiltInFunctions
         },
 
         new Callable ("stringp", 1) {
-            { doc = "(stringp x) => x が文字列 (String) か？"; }
+            { doc = "(stringp x) => x が文字列 (String か Rope) か？"; }
             public Object call(Object[] a) {
-                return (a[0] instanceof String) ? LL.S_T : null;
+                Object x = a[0];
+                return (x instanceof String ||
+                        x instanceof Rope) ? LL.S_T : null;
             }
         },
 
@@ -89,10 +111,30 @@ public class BuiltInFunctions
             }
         },
 
+        new Callable ("make-symbol", 1) {
+            { doc = "(make-symbol \"name\") => 表に登録しない新しいシンボル"; }
+            public Object call(Object[] a) {
+                return Symbol.uninterned((String) a[0]);
+            }
+        },
+
+        new Callable ("gensym", 1, Callable.Option.HAS_REST) {
+            { doc = "(gensym [\"prefix\"]) => 表に登録しない新しい" +
+                    "シンボル G1, G2, ..."; }
+            public Object call(Object[] a) {
+                Cell rest = (Cell) a[0];
+                String prefix = (rest == null) ? "G" : (String) rest.car;
+                return Symbol.gensym(prefix);
+            }
+        },
+
         new Callable ("vectorp", 1) {
-            { doc = "(vectorp x) => x がベクトル (Object[]) か？"; }
+            { doc = "(vectorp x) => x がベクトル (Object[] か " +
+                    "AdjustableVector) か？"; }
             public Object call(Object[] a) {
-                return (a[0] instanceof Object[]) ? LL.S_T : null;
+                Object x = a[0];
+                return (x instanceof Object[] ||
+                        x instanceof AdjustableVector) ? LL.S_T : null;
             }
         },
 
@@ -112,6 +154,8 @@ public class BuiltInFunctions
             }
         },
 
+        STRING_LESS,
+
         new Callable ("list", 1,
                       Callable.Option.HAS_REST,
                       Callable.Option.IS_LAZY) {
@@ -145,6 +189,80 @@ public class BuiltInFunctions
                 return x;
             }
         },
+
+        new Callable ("make-adjustable-vector", 1) {
+            { doc = "(make-adjustable-vector C) => 容量 C 長さ 0 の" +
+                    "伸長可能なベクトル"; }
+            public Object call(Object[] a) {
+                return new AdjustableVector ((Integer) a[0]);
+            }
+        },
+
+        new Callable ("vector-push-extend", 2, Callable.Option.IS_LAZY) {
+            { doc = "(vector-push-extend x vector) => 末尾に x を追加した" +
+                    "ときの添字"; }
+            public Object call(Object[] a) {
+                AdjustableVector v = (AdjustableVector) LL.force(a[1]);
+                return v.push(a[0]); // x は約束のままかもしれない
+            }
+        },
+
+        new Callable ("vector-pop", 1) {
+            { doc = "(vector-pop vector) => 末尾から取り除いた要素"; }
+            public Object call(Object[] a) {
+                return ((AdjustableVector) a[0]).pop();
+            }
+        },
+
+        new Callable ("fill-pointer", 1) {
+            { doc = "(fill-pointer vector) => 伸長可能なベクトルの要素数"; }
+            public Object call(Object[] a) {
+                return ((AdjustableVector) a[0]).size();
+            }
+        },
+
+        new Callable ("set-fill-pointer", 2) {
+            { doc = "(set-fill-pointer vector n): 要素数を容量の範囲で " +
+                    "n にする"; }
+            public Object call(Object[] a) {
+                int n = (Integer) a[1];
+                ((AdjustableVector) a[0]).setFillPointer(n);
+                return n;
+            }
+        },
+
+        new Callable ("vector-reserve", 2) {
+            { doc = "(vector-reserve vector n): 少なくとも容量 n を確保する"; }
+            public Object call(Object[] a) {
+                ((AdjustableVector) a[0]).reserve((Integer) a[1]);
+                return a[0];
+            }
+        },
+
+        new Callable ("sort", 2) {
+            { doc = "(sort seq pred) => seq を述語 pred で整列したもの " +
+                    "(seq は破壊される)"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return sort(a[0], (Function) a[1], interp, env);
+            }
+        },
+
+        new Callable ("stable-sort", 2) {
+            { doc = "(stable-sort seq pred) => seq を述語 pred で安定に" +
+                    "整列したもの (seq は破壊される)"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return sort(a[0], (Function) a[1], interp, env);
+            }
+        },
+
+        new Callable ("_defstruct", 2) {
+            { doc = "(_defstruct 'name '(slot...)): 構造体の関数を定義する"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                Symbol name = (Symbol) a[0];
+                Struct.define(name, (Cell) a[1], interp);
+                return name;
+            }
+        },
 
         new Callable ("prin1", 1) {
             { doc = "(prin1 x): x を印字する (文字列は引用符付き)"; }
@@ -328,27 +446,7 @@ public class BuiltInFunctions
             }
         },
 
-        new Callable ("<", 2) {
-            { doc = "算術比較 (< a b): a < b か？"; }
-            public Object call(Object[] a) {
-                Number x = (Number) a[0];
-                Number y = (Number) a[1];
-                if (x instanceof Integer && y instanceof Integer) {
-                    return (x.intValue() < y.intValue()) ?
-                        LL.S_T : null;
-                } else if (x instanceof Double || y instanceof Double) {
-                    return (x.doubleValue() < y.doubleValue()) ?
-                        LL.S_T : null;
-                } else {
-                    if (x instanceof Integer)
-                        x = BigInteger.valueOf(x.longValue());
-                    else if (y instanceof Integer)
-                        y = BigInteger.valueOf(y.longValue());
-                    return (((BigInteger) x).compareTo((BigInteger) y) < 0) ?
-                        LL.S_T : null;
-                }
-            }
-        },
+        NUMBER_LESS,
 
         new Callable ("float", 1) {
             { doc = "(float 数) => 数を浮動小数点数にした値"; }
@@ -411,11 +509,245 @@ public class BuiltInFunctions
             }
         },
 
+        new Callable ("range", 2) {
+            { doc = "(range m n) => m 以上 n 未満の整数の遅延リスト"; }
+            public Object call(Object[] a) {
+                return LazySeq.range((Number) a[0], (Number) a[1]);
+            }
+        },
+
+        new Callable ("map", 2) {
+            { doc = "(map f x) => x の各要素に f を適用した遅延リスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return LazySeq.map((Function) a[0], a[1], interp);
+            }
+        },
+
+        new Callable ("filter", 2) {
+            { doc = "(filter f x) => x のうち f が真となる要素の遅延リスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return LazySeq.filter((Function) a[0], a[1], interp);
+            }
+        },
+
+        new Callable ("scanl", 3) {
+            { doc = "(scanl f q x) => (q (f q x0) (f (f q x0) x1) ...) " +
+                    "の遅延リスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return LazySeq.scanl((Function) a[0], a[1], a[2], interp);
+            }
+        },
+
+        new Callable ("zipWith", 3) {
+            { doc = "(zipWith f x y) => ((f x0 y0) (f x1 y1) ...) " +
+                    "の遅延リスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return LazySeq.zipWith((Function) a[0], a[1], a[2], interp);
+            }
+        },
+
+        new Callable ("_zip", 1) {
+            { doc = "(_zip '((a b) (1 2))) => ((a 1) (b 2)) の遅延リスト"; }
+            public Object call(Object[] a) {
+                return (a[0] == null) ? null : LazySeq.zip((Cell) a[0]);
+            }
+        },
+
+        new Callable ("prefetch", 2, Callable.Option.IS_LAZY) {
+            { doc = "(prefetch n x) => 別スレッドで n 要素先まで " +
+                    "force される x と同じ遅延リスト"; }
+            public Object call(Object[] a) {
+                int n = (Integer) LL.force(a[0]);
+                if (n <= 0)
+                    throw new EvalException ("positive number expected",
+                                             a[0]);
+                return Prefetch.of(n, a[1]);
+            }
+        },
+
+        new Callable ("_future", 1) {
+            { doc = "(_future fn) => 別スレッドで関数 fn を呼び始め，" +
+                    "その値を果たす約束"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return LispFuture.of((Function) a[0], interp);
+            }
+        },
+
+        new Callable ("touch", 1) {
+            { doc = "(touch x) => x を force した値 (先物ならば" +
+                    "評価が終わるまで待つ)"; }
+            public Object call(Object[] a) {
+                return a[0];    // 引数渡しの時にもう待ち終えている
+            }
+        },
+
+        new Callable ("make-atom", 1) {
+            { doc = "(make-atom x) => 値 x を持つ新しいアトム"; }
+            public Object call(Object[] a) {
+                return new LispAtom (a[0]);
+            }
+        },
+
+        new Callable ("atom-get", 1) {
+            { doc = "(atom-get a) => アトム a の現在の値"; }
+            public Object call(Object[] a) {
+                return ((LispAtom) a[0]).get();
+            }
+        },
+
+        new Callable ("atom-swap!", 3, Callable.Option.HAS_REST) {
+            { doc = "(atom-swap! a fn args...) => アトム a の値 v を " +
+                    "(fn v args...) に CAS で置き換えた値"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return ((LispAtom) a[0]).swap((Function) a[1], (Cell) a[2],
+                                              interp, env);
+            }
+        },
+
+        new Callable ("atom-cas!", 3) {
+            { doc = "(atom-cas! a old new) => アトム a の値が old に " +
+                    "eql ならば new に置き換えて t"; }
+            public Object call(Object[] a) {
+                return ((LispAtom) a[0]).compareAndSet(a[1], a[2]) ?
+                    LL.S_T : null;
+            }
+        },
+
+        new Callable ("make-channel", 1) {
+            { doc = "(make-channel n) => 容量 n の新しいチャネル"; }
+            public Object call(Object[] a) {
+                int n = (Integer) a[0];
+                if (n <= 0)
+                    throw new EvalException ("positive number expected",
+                                             a[0]);
+                return new Channel (n);
+            }
+        },
+
+        new Callable ("chan-put", 2) {
+            { doc = "(chan-put c x): チャネル c に x を送る " +
+                    "(満杯ならば待つ)"; }
+            public Object call(Object[] a) {
+                ((Channel) a[0]).put(a[1]);
+                return a[1];
+            }
+        },
+
+        new Callable ("chan-take", 1) {
+            { doc = "(chan-take c) => チャネル c から受け取った値 " +
+                    "(閉じられて空ならば *eof*)"; }
+            public Object call(Object[] a) {
+                return ((Channel) a[0]).take();
+            }
+        },
+
+        new Callable ("chan-close", 1) {
+            { doc = "(chan-close c): チャネル c を閉じる"; }
+            public Object call(Object[] a) {
+                ((Channel) a[0]).close();
+                return null;
+            }
+        },
+
+        new Callable ("spawn", 1) {
+            { doc = "(spawn fn) => 新しいインタープリタで引数のない" +
+                    "関数 fn を実行するアクター"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return Actor.spawn((Function) a[0], interp);
+            }
+        },
+
+        new Callable ("self", 0) {
+            { doc = "(self) => 現在のスレッドのアクター"; }
+            public Object call(Object[] a) {
+                return Actor.self();
+            }
+        },
+
+        new Callable ("send", 2) {
+            { doc = "(send a x): アクター a に x の複製を送る"; }
+            public Object call(Object[] a) {
+                ((Actor) a[0]).send(a[1]);
+                return a[1];
+            }
+        },
+
+        new Callable ("receive", 0) {
+            { doc = "(receive) => 現在のアクターに送られた次の値 " +
+                    "(なければ待つ)"; }
+            public Object call(Object[] a) {
+                return Actor.receive();
+            }
+        },
+
+        new Callable ("actor-join", 1) {
+            { doc = "(actor-join a) => アクター a の関数の値 " +
+                    "(終わるまで待つ)"; }
+            public Object call(Object[] a) {
+                return ((Actor) a[0]).join();
+            }
+        },
+
+        new Callable ("make-generator", 1) {
+            { doc = "(make-generator fn) => 引数のない関数 fn の中で " +
+                    "yield した値を順に与えるジェネレータ"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return new Generator ((Function) a[0], interp);
+            }
+        },
+
+        new Callable ("yield", 1, Callable.Option.IS_LAZY) {
+            { doc = "(yield x): ジェネレータの関数の中から x を渡す"; }
+            public Object call(Object[] a) {
+                Generator.yield(a[0]);
+                return null;
+            }
+        },
+
+        new Callable ("next", 1) {
+            { doc = "(next g) => ジェネレータ g の次の値，または *eof*"; }
+            public Object call(Object[] a) {
+                return ((Generator) a[0]).next();
+            }
+        },
+
+        new Callable ("from-stream", 1) {
+            { doc = "(from-stream s) => Java のストリームまたは " +
+                    "イテレータ s の要素の遅延リスト"; }
+            public Object call(Object[] a) {
+                if (a[0] instanceof Iterator)
+                    return Streams.toLazyList((Iterator) a[0]);
+                else
+                    return Streams.toLazyList((BaseStream) a[0]);
+            }
+        },
+
+        new Callable ("lazy-seq", 1) {
+            { doc = "(lazy-seq g) => ジェネレータ g の残りの値の遅延リスト"; }
+            public Object call(Object[] a) {
+                return ((Generator) a[0]).toLazyList();
+            }
+        },
+
+        new Callable ("file-lines", 1) {
+            { doc = "(file-lines file-name) => ファイルの各行の遅延リスト"; }
+            public Object call(Object[] a) throws IOException {
+                return LineSeq.file(asString(a[0]));
+            }
+        },
+
+        new Callable ("stdin-lines", 0) {
+            { doc = "(stdin-lines) => 標準入力の残りの各行の遅延リスト"; }
+            public Object call(Object[] a) {
+                return LineSeq.stdin();
+            }
+        },
+
         new Callable ("rplaca", 2, Callable.Option.IS_LAZY) {
             { doc = "(rplaca x y): x の car を y で置き換える"; }
             public Object call(Object[] a) {
                 Object x = LL.force(a[0]);
-                ((Cell) x).car = a[1];
+                ((Cell) x).setCar(a[1]);
                 return a[1];    // 結果は約束のままかもしれない
             }
         },
@@ -424,7 +756,7 @@ public class BuiltInFunctions
             { doc = "(rplacd x y): x の cdr を y で置き換える"; }
             public Object call(Object[] a) {
                 Object x = LL.force(a[0]);
-                ((Cell) x).cdr = a[1];
+                ((Cell) x).setCdr(a[1]);
                 return a[1];    // 結果は約束のままかもしれない
              }
          },
@@ -444,8 +776,10 @@ public class BuiltInFunctions
                 int i = (Integer) a[1];
                 if (x instanceof Object[])
                     return ((Object[]) x)[i];
+                else if (x instanceof AdjustableVector)
+                    return ((AdjustableVector) x).get(i);
                 else
-                    return (int) ((String) x).charAt(i);
+                    return (int) ((CharSequence) x).charAt(i);
             }
         },
 
@@ -456,7 +790,10 @@ public class BuiltInFunctions
                 Object x = LL.force(a[0]);
                 int i = (Integer) LL.force(a[1]);
                 Object value = a[2];
-                ((Object[]) x)[i] = value;
+                if (x instanceof AdjustableVector)
+                    ((AdjustableVector) x).set(i, value);
+                else
+                    ((Object[]) x)[i] = value;
                 return value;   // value は約束のままかもしれない
             }
         },
@@ -489,6 +826,30 @@ public class BuiltInFunctions
             }
         },
 
+        new Callable ("pmapcar", 2) {
+            { doc = "(pmapcar fn seq) => 各要素に fn を並列に適用した" +
+                    "リスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return Parallel.mapcar((Function) a[0], a[1], interp, env);
+            }
+        },
+
+        new Callable ("pfilter", 2) {
+            { doc = "(pfilter fn seq) => fn を並列に適用して真となった" +
+                    "要素のリスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return Parallel.filter((Function) a[0], a[1], interp, env);
+            }
+        },
+
+        new Callable ("preduce", 2) {
+            { doc = "(preduce fn seq) => 結合的な二項関数 fn で" +
+                    "並列に畳み込んだ値"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                return Parallel.reduce((Function) a[0], a[1], interp, env);
+            }
+        },
+
         new Callable ("length", 1) {
             { doc = "(length x): 要素数"; }
             public Object call(Object[] a) {
@@ -497,8 +858,10 @@ public class BuiltInFunctions
                     return 0;
                 } else if (x instanceof Object[]) {
                     return ((Object[]) x).length;
-                } else if (x instanceof String) {
-                    return ((String) x).length();
+                } else if (x instanceof AdjustableVector) {
+                    return ((AdjustableVector) x).size();
+                } else if (x instanceof CharSequence) {
+                    return ((CharSequence) x).length(); // 文字列やロープ
                 } else {
                     int i = 0;
                     for (Object e: toIterable(x))
@@ -511,7 +874,7 @@ public class BuiltInFunctions
         new Callable ("string-to-char", 1) {
             { doc = "(string-to-char \"ABC\") => 65"; }
             public Object call(Object[] a) {
-                String s = (String) a[0];
+                String s = asString(a[0]);
                 if (s.length() == 0)
                     return 0;
                 else
@@ -531,7 +894,7 @@ public class BuiltInFunctions
             // Emacs Lisp と異なり，Lisp 式の数の読み取りと一致させる。
             { doc = "(string-to-number \" 444.3622 \") => 444.3622"; }
             public Object call(Object[] a) throws IOException {
-                IInput input = new LinesFromString ((String) a[0]);
+                IInput input = new LinesFromString (asString(a[0]));
                 LispReader reader = new LispReader (input);
                 try {
                     Object x = reader.read();
@@ -548,7 +911,7 @@ public class BuiltInFunctions
         new Callable ("_string+", 2) {
             { doc = "(_string+ str1 str2) => str1 + str2"; }
             public Object call(Object[] a) {
-                return (String) a[0] + (String) a[1];
+                return asString(a[0]) + asString(a[1]);
             }
         },
 
@@ -562,16 +925,68 @@ public class BuiltInFunctions
                     return x;
                 } else {
                     StringBuilder sb = new StringBuilder ();
-                    for (Object e: toIterable(x)) {
-                        Number n = (Number) e;
-                        char ch = (char) n.intValue();
-                        sb.append(ch);
-                    }
+                    appendSequence(sb, x);
                     return sb.toString();
                 }
             }
         },
 
+        new Callable ("concat", 1, Callable.Option.HAS_REST) {
+            { doc = "(concat \"ab\" '(99) [100]) => \"abcd\""; }
+            public Object call(Object[] a) {
+                StringBuilder sb = new StringBuilder ();
+                for (Cell j = (Cell) a[0]; j != null; j = j.getCdrCell())
+                    appendSequence(sb, j.car);
+                return sb.toString();
+            }
+        },
+
+        new Callable ("rope-concat", 1, Callable.Option.HAS_REST) {
+            { doc = "(rope-concat s1 s2 ...) => 連結した文字列 " +
+                    "(長ければ Rope)"; }
+            public Object call(Object[] a) {
+                CharSequence z = "";
+                for (Cell j = (Cell) a[0]; j != null; j = j.getCdrCell()) {
+                    Object x = j.car;
+                    CharSequence s;
+                    if (x instanceof String || x instanceof Rope) {
+                        s = (CharSequence) x;
+                    } else {
+                        StringBuilder sb = new StringBuilder ();
+                        appendSequence(sb, x);
+                        s = sb.toString();
+                    }
+                    z = Rope.concat(z, s);
+                }
+                return z;
+            }
+        },
+
+        new Callable ("make-string-builder", 0) {
+            { doc = "(make-string-builder) => 空の可変な文字列"; }
+            public Object call(Object[] a) {
+                return new StringBuilder ();
+            }
+        },
+
+        new Callable ("sb-append", 2, Callable.Option.HAS_REST) {
+            { doc = "(sb-append sb seq ...) => 各 seq を文字列として末尾に" +
+                    "追加した sb"; }
+            public Object call(Object[] a) {
+                StringBuilder sb = (StringBuilder) a[0];
+                for (Cell j = (Cell) a[1]; j != null; j = j.getCdrCell())
+                    appendSequence(sb, j.car);
+                return sb;
+            }
+        },
+
+        new Callable ("sb-to-string", 1) {
+            { doc = "(sb-to-string sb) => sb の内容の文字列"; }
+            public Object call(Object[] a) {
+                return ((StringBuilder) a[0]).toString();
+            }
+        },
+
         new Callable ("_vector+", 2) {
             { doc = "(_vector+ [1 2] [3 4]) => [1 2 3 4]"; }
             public Object call(Object[] a) {
@@ -643,6 +1058,77 @@ public class BuiltInFunctions
             }
         },
 
+        new Callable ("hash-consing", 1) {
+            { doc = "(hash-consing flag): 以後に読み取る式を" +
+                    "ハッシュ・コンシングするかどうかを設定する"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                LispReader lr = interp.getReader();
+                if (a[0] == null)
+                    lr.setHashConsTable(null);
+                else if (lr.getHashConsTable() == null)
+                    lr.setHashConsTable(new HashConsTable ());
+                return a[0];
+            }
+        },
+
+        new Callable ("hash-cons-stats", 0) {
+            { doc = "(hash-cons-stats) => ((entries . 表の項目数) " +
+                    "(requests . 要求数) (hits . 共有数) (dedup-ratio . 比))"; }
+            public Object call(Object[] a, IInterp interp, Cell env) {
+                HashConsTable t = interp.getReader().getHashConsTable();
+                if (t == null)
+                    return null;
+                long requests = t.getRequests();
+                long hits = t.getHits();
+                double ratio = (requests == 0) ? 0.0 :
+                    (double) hits / requests;
+                return LL.list(new Cell (Symbol.of("entries"), t.size()),
+                               new Cell (Symbol.of("requests"), reg(requests)),
+                               new Cell (Symbol.of("hits"), reg(hits)),
+                               new Cell (Symbol.of("dedup-ratio"), ratio));
+            }
+        },
+
+        new Callable ("offheap-load", 1) {
+            { doc = "(offheap-load file-name) => ファイルの各式を" +
+                    "ヒープ外に格納したリスト"; }
+            public Object call(Object[] a, IInterp interp, Cell env)
+                throws IOException
+            {
+                String fileName = asString(a[0]);
+                InputStream stream = new FileInputStream (fileName);
+                LispReader lr = new LispReader
+                    (new LinesFromInputStream (stream));
+                try {
+                    return new OffHeapStore ().load(lr);
+                } finally {
+                    lr.close();
+                }
+            }
+        },
+
+        new Callable ("offheap-copy", 1) {
+            { doc = "(offheap-copy x) => ヒープ外に格納した x の複製"; }
+            public Object call(Object[] a) {
+                return new OffHeapStore ().copy(a[0]);
+            }
+        },
+
+        new Callable ("offheap-stats", 1) {
+            { doc = "(offheap-stats x) => x の格納先の ((chunks . 個数) " +
+                    "(bytes . 使用量) (cells . セル数) (objects . 個数))"; }
+            public Object call(Object[] a) {
+                OffHeapStore s = OffHeapStore.storeOf(a[0]);
+                if (s == null)
+                    return null;
+                return LL.list
+                    (new Cell (Symbol.of("chunks"), s.getChunkCount()),
+                     new Cell (Symbol.of("bytes"), reg(s.getUsedBytes())),
+                     new Cell (Symbol.of("cells"), reg(s.getCellCount())),
+                     new Cell (Symbol.of("objects"), s.getObjectCount()));
+            }
+        },
+
         new Callable ("java-load", 2) {
             { doc = "(java-load クラス名 静的公開フィールド名): " +
                     "フィールド値を Callable[] として関数を取り込む"; }
@@ -725,23 +1211,98 @@ public class BuiltInFunctions
         }
     }
 
+    /** 二つの数を比較する。
+     * @param x 数 (Integer, Double または BigInteger)
+     * @param y 数 (Integer, Double または BigInteger)
+     * @return x &lt; y ならば負，x &gt; y ならば正，さもなくば 0
+     */
+    public static int compare(Number x, Number y) {
+        if (x instanceof Integer && y instanceof Integer) {
+            int i = x.intValue();
+            int j = y.intValue();
+            return (i < j) ? -1 : (i == j) ? 0 : 1;
+        } else if (x instanceof Double || y instanceof Double) {
+            double f = x.doubleValue();
+            double g = y.doubleValue();
+            return (f < g) ? -1 : (g < f) ? 1 : 0; // NaN は 0 とする
+        } else {
+            if (x instanceof Integer)
+                x = BigInteger.valueOf(x.longValue());
+            else if (y instanceof Integer)
+                y = BigInteger.valueOf(y.longValue());
+            return ((BigInteger) x).compareTo((BigInteger) y);
+        }
+    }
+
+    /** リストまたはベクトルをその場で安定に整列する。
+     * 整列の前に各要素の約束をかなえる。
+     * @param seq nil, リスト，Object[] または AdjustableVector
+     * @param pred (pred a b) が a が b より前であるときだけ真を返す述語
+     * @param interp 述語を呼び出す Lisp インタープリタ
+     * @param env 述語を呼び出すときの環境
+     * @return 整列したリストまたはベクトル
+     */
+    public static Object sort(Object seq, Function pred,
+                              IInterp interp, Cell env) {
+        Sorter.Order order = Sorter.orderOf(pred, interp, env);
+        if (seq == null) {
+            return null;
+        } else if (seq instanceof Cell) {
+            Cell list = (Cell) seq;
+            list.forceEach();
+            return Sorter.sortList(list, order);
+        } else if (seq instanceof AdjustableVector) {
+            AdjustableVector v = (AdjustableVector) seq;
+            Object[] x = v.array();
+            int n = v.size();
+            for (int i = 0; i < n; i++)
+                x[i] = LL.force(x[i]);
+            Sorter.sortArray(x, 0, n, order);
+            return v;
+        } else {
+            Object[] x = (Object[]) seq;
+            for (int i = 0; i < x.length; i++)
+                x[i] = LL.force(x[i]);
+            Sorter.sortArray(x, 0, x.length, order);
+            return x;
+        }
+    }
+
+    /** 文字列またはその他の列を文字列として StringBuilder に追加する。
+     * 文字列とロープ以外の列の各要素は文字コードとみなす。
+     * @param sb 追加先
+     * @param x nil, 文字列，ロープ，または文字コードの列
+     */
+    public static void appendSequence(StringBuilder sb, Object x) {
+        if (x instanceof CharSequence) {
+            sb.append((CharSequence) x);
+        } else if (x != null) {
+            for (Object e: toIterable(x)) {
+                Number n = (Number) e;
+                sb.append((char) n.intValue());
+            }
+        }
+    }
+
     /** null, シンボル，文字列に対する文字列値
-     * @param x Lisp 値，ただし nil かシンボルか文字列
+     * @param x Lisp 値，ただし nil かシンボルか文字列 (ロープを含む)
      * @return 引数の Lisp 値としての文字列表現
      */
     public static String asString(Object x) {
-        if (x == null || x instanceof Symbol || x instanceof String)
+        if (x instanceof Rope)
+            return x.toString();
+        else if (x == null || x instanceof Symbol || x instanceof String)
             return LL.str(x, false);
         else
             throw new EvalException ("string or symbol expected", x);
     }
 
     /** map 系ユーティリティ.
-     * 引数が null, Iterable ならばそのまま返す。
+     * 引数が null, Iterable (AdjustableVector を含む) ならばそのまま返す。
      * Object[] ならば List にラップして返す。
-     * String ならば，対応する文字コードの Integer 値の並びを
+     * 文字列 (CharSequence) ならば，対応する文字コードの Integer 値の並びを
      * 返す Iterable を作成して，それを返す。
-     * @param x null, Iterable, Object[] または String
+     * @param x null, Iterable, Object[] または CharSequence
      * @return 引数の各要素を順に与える Iterable 値
      */
     public static Iterable toIterable(Object x) {
@@ -750,7 +1311,7 @@ public class BuiltInFunctions
         } else if (x instanceof Object[]) {
             return Arrays.asList((Object[]) x);
         } else {
-            final String s = (String) x;
+            final CharSequence s = (CharSequence) x;
             return new Iterable () {
                 public Iterator iterator() {
                     return new Iterator () {
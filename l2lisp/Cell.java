@@ -1,13 +1,30 @@
-// H22.7/26, H30.4/8 (鈴)
+// H22.7/26, H30.4/8, R8.10/19 (鈴)
 package l2lisp;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-/** cons セル */
-public final class Cell implements Iterable
+/** cons セル.
+ * 長い proper list は，先頭のセルと，残りの要素を並べた配列を指す
+ * Compact からなる詰めた形 (CDR コーディング) でも表される。
+ * このとき cdr の各セルは取り出されたときに初めて作られる。
+ * 作られたセルは元のセルの cdr に格納されるから，同じ位置からは
+ * 常に同じセルが得られる。
+ * <p>
+ * 一般に cdr が Tail ならば，後続のセルはその Tail から得られる。
+ * 派生クラスは OffHeapStore のビューだけである。
+ * <p>
+ * 約束を果たした値や Compact から作ったセルで cdr を書き換えるのは，
+ * 複数のスレッドが同時にしても同じ値を書くから安全である。
+ * cdr は volatile だから，別のスレッドが書き換えた cdr から得たセルや
+ * 値も，その中身まで書かれた状態で見える。
+ * car は volatile でない。forceEach が car を書き換えるのは，
+ * 引数の並びや整列するリストのように一つのスレッドが使うリストに限る。
+ */
+public class Cell implements Iterable
 {
     Object car;
-    Object cdr;
+    volatile Object cdr;
 
     /** Lisp の (cos car cdr) に相当
      * @param car car 値となる任意の Lisp 値
@@ -28,35 +45,46 @@ public final class Cell implements Iterable
      * @param value 新しく car 値となる任意の Lisp 値
      */
     public void setCar(Object value) {
+        beforeUpdate();
         car = value;
     }
 
     /** 第２要素の getter
+     * 詰めた形のリストならば，ここで後続のセルを作る。
      * @return 素の cdr 値 (約束は約束のまま)
      */
     public Object getCdr() {
+        if (cdr instanceof Tail)
+            return ((Tail) cdr).get(this);
         return cdr;
     }
     /** 第２要素の setter
      * @param value 新しく cdr 値となる任意の Lisp 値
      */
     public void setCdr(Object value) {
+        beforeUpdate();
         cdr = value;
     }
 
+    /** car または cdr を書き換える直前に呼ばれる。
+     * ここでの実装は何もしない。
+     */
+    void beforeUpdate() {}
+
     /** 第２要素の getter。ただし Cell または null として。
      * このとき必要ならば第２要素を force する。
      * @return force した cdr 値 (ただし cons セルまたは nil)
      * @throws ProperListExpectedException Cell または null ではなかった。
      */
     public Cell getCdrCell() throws ProperListExpectedException {
+        if (cdr instanceof Promise)
+            cdr = ((Promise) cdr).deliver(); // 約束の連鎖も果たす。
         if (cdr instanceof Cell) {
             return (Cell) cdr;
         } else if (cdr == null) {
             return null;
-        } else if (cdr instanceof Promise) {
-            cdr = ((Promise) cdr).deliver();
-            return getCdrCell();
+        } else if (cdr instanceof Tail) {
+            return ((Tail) cdr).get(this);
         } else {
             throw new ProperListExpectedException (this);
         }
@@ -65,19 +93,32 @@ public final class Cell implements Iterable
     /** Lisp のリストとして各要素を与えるイテレータを作る。
      * このとき必要ならば各セルの第２要素を force する。
      * proper list でなければ最後に ProperListExpectedException 例外を
-     * 発生させる。
+     * 発生させる。詰めた形のリストはセルを作らずに配列から要素を与える。
      */
     public Iterator iterator() {
         return new Iterator () {
             private Object j = Cell.this;
+            private Object[] elements = null; // j が Compact のときの配列
+            private int index;
+            private Cell owner = null; // j を cdr とするセル
 
             public boolean hasNext() {
-                if (j instanceof Cell) {
+                if (elements != null) {
+                    return index < elements.length;
+                } else if (j instanceof Cell) {
                     return true;
                 } else if (j == null) {
                     return false;
+                } else if (j instanceof Compact) {
+                    Compact c = (Compact) j;
+                    elements = c.elements;
+                    index = c.index;
+                    return true;
+                } else if (j instanceof Tail) {
+                    j = ((Tail) j).get(owner);
+                    return true;
                 } else if (j instanceof Promise) {
-                    j = ((Promise) j).deliver();
+                    j = ((Promise) j).deliver(); // 約束の連鎖も果たす。
                     return hasNext();
                 } else {
                     throw new ProperListExpectedException (Cell.this);
@@ -87,10 +128,13 @@ public final class Cell implements Iterable
             /** リストの次の要素を返す。内部のポインタを次のセルへと進める。
              */
             public Object next() {
-                if (j == null) {
+                if (! hasNext()) {
                     throw new NoSuchElementException ();
+                } else if (elements != null) {
+                    return elements[index++];
                 } else {
                     Cell c = (Cell) j;
+                    owner = c;
                     j = c.cdr;
                     return c.car;
                 }
@@ -102,6 +146,14 @@ public final class Cell implements Iterable
         };
     }
 
+    /** Lisp のリストとして各要素を与える Spliterator を作る。
+     * 詰めた形の部分は大きさが分かり，半分ずつ分割できる。
+     * @see Streams#spliterator(Object)
+     */
+    @Override public Spliterator spliterator() {
+        return Streams.spliterator(this);
+    }
+
     /** Lisp のリストとして各要素を force する。
      * improper list であってもよい。
      */
@@ -112,10 +164,13 @@ public final class Cell implements Iterable
                 j.car = ((Promise) j.car).deliver();
             if (j.cdr instanceof Promise)
                 j.cdr = ((Promise) j.cdr).deliver();
-            if (j.cdr instanceof Cell)
+            if (j.cdr instanceof Cell) {
                 j = (Cell) j.cdr;
-            else                // null または非 Cell に到達したら終了
-                break;
+            } else {            // null または非 Cell に到達したら終了
+                if (j.cdr instanceof Compact)
+                    ((Compact) j.cdr).forceEach();
+                break;          // その他の Tail は約束を含まない。
+            }
         }
     }
 
@@ -126,20 +181,34 @@ public final class Cell implements Iterable
      * @see LL#mapcar
      */
     public Cell mapcar(LL.IUnary fn) {
-        Cell z = null;
-        Cell y = null;
-        for (Cell j = this; j != null; j = j.getCdrCell()) {
-            Object e = j.car;
+        ArrayList<Object> a = new ArrayList<Object> ();
+        for (Object e: this) {
             if (fn != null)
                 e = fn.apply(e);
-            Cell x = new Cell (e, null);
-            if (z == null)
-                z = x;
-            else
-                y.cdr = x;
-            y = x;
+            a.add(e);
+        }
+        return fromArray(a.toArray());
+    }
+
+    /** 要素の配列から Lisp のリストを作る。
+     * 要素が LL.MIN_COMPACT_LENGTH 個以上ならば，配列をそのまま使った
+     * 詰めた形のリストにする。
+     * @param elements 要素の配列 (以後，呼出し元は変更しないこと)
+     * @return 各要素を順に並べたリスト，ただし要素がなければ null
+     */
+    static Cell fromArray(Object[] elements) {
+        int n = elements.length;
+        if (n == 0) {
+            return null;
+        } else if (n >= LL.MIN_COMPACT_LENGTH) {
+            Object rest = (n == 1) ? null : new Compact (elements, 1);
+            return new Cell (elements[0], rest);
+        } else {
+            Cell z = null;
+            for (int i = n - 1; i >= 0; i--)
+                z = new Cell (elements[i], z);
+            return z;
         }
-        return z;
     }
 
     /** Lisp のリストとしての文字列表現を返す。
@@ -148,33 +217,102 @@ public final class Cell implements Iterable
         return LL.str(this);
     }
 
-    /** LL.str の補助関数
+    /** LL.str の補助関数。長いリストでもスタックを消費しないように
+     * cdr の方向には反復してたどる。
      */
     String repr(boolean printQuote, int recLevel, Set<Object> printed) 
     {
-        if (! printed.add(this)) { // 重複していたならば…
-            recLevel--;
-            if (recLevel == 0)
-                return "...";
-        }
-        Object kdr = cdr;
-        if (kdr instanceof Promise) // ここでは，かなえない
-            kdr = ((Promise) kdr).value();
-        if (kdr == null) {
-            return LL.str(car, printQuote, recLevel, printed);
-        } else {
-            String s = LL.str(car, printQuote, recLevel, printed);
-            if (kdr instanceof Cell) {
-                String t = ((Cell) kdr).repr(printQuote, recLevel, printed);
-                return s + " " + t;
+        StringBuilder sb = new StringBuilder ();
+        Cell j = this;
+        for (;;) {
+            if (! printed.add(j)) { // 重複していたならば…
+                recLevel--;
+                if (recLevel == 0)
+                    return sb.append("...").toString();
+            }
+            sb.append(LL.str(j.car, printQuote, recLevel, printed));
+            Object kdr = j.cdr;
+            if (kdr instanceof Promise) // ここでは，かなえない
+                kdr = ((Promise) kdr).value();
+            else if (kdr instanceof Tail && ! (kdr instanceof Compact))
+                kdr = j.getCdr();
+            if (kdr == null) {
+                return sb.toString();
+            } else if (kdr instanceof Compact) { // セルを作らずに印字する
+                Compact c = (Compact) kdr;
+                for (int i = c.index; i < c.elements.length; i++) {
+                    sb.append(" ");
+                    sb.append(LL.str(c.elements[i], printQuote, recLevel,
+                                     printed));
+                }
+                return sb.toString();
+            } else if (kdr instanceof Cell) {
+                sb.append(" ");
+                j = (Cell) kdr;
             } else {
-                String t = LL.str(kdr, printQuote, recLevel, printed);
-                return s + " . " + t;
+                sb.append(" . ");
+                sb.append(LL.str(kdr, printQuote, recLevel, printed));
+                return sb.toString();
             }
         }
     }
 
-
+
+    /** まだセルが作られていない，空でないリストの後続部分 */
+    static abstract class Tail
+    {
+        /** 後続部分の先頭のセルを返す。
+         * @param owner この Tail を cdr とするセル
+         * @return owner の cdr としてのセル
+         */
+        abstract Cell get(Cell owner);
+    } // Tail
+
+    /** 詰めた形のリストの，まだセルが作られていない後続部分.
+     * 配列の index 番目以降の要素を順に並べた proper list を表す。
+     */
+    static final class Compact extends Tail
+    {
+        final Object[] elements;
+        final int index;
+        private volatile Cell cell = null; // 作った先頭のセル
+
+        private static final AtomicReferenceFieldUpdater<Compact, Cell> CELL
+            = AtomicReferenceFieldUpdater.newUpdater
+            (Compact.class, Cell.class, "cell");
+
+        Compact (Object[] elements, int index) {
+            this.elements = elements;
+            this.index = index;
+        }
+
+        /** 先頭のセルを作り，owner の cdr に格納する。
+         * その cdr は残りの要素の Compact になる。
+         * 複数のスレッドが同時に作っても，CAS に勝った一つだけを使う。
+         */
+        Cell get(Cell owner) {
+            Cell c = cell;
+            if (c == null) {
+                int i = index + 1;
+                Object rest = (i < elements.length) ?
+                    new Compact (elements, i) : null;
+                c = new Cell (elements[index], rest);
+                if (! CELL.compareAndSet(this, null, c))
+                    c = cell;
+            }
+            owner.cdr = c;
+            return c;
+        }
+
+        /** 各要素の約束をかなえる。*/
+        void forceEach() {
+            for (int i = index; i < elements.length; i++)
+                if (elements[i] instanceof Promise)
+                    elements[i] = ((Promise) elements[i]).deliver();
+        }
+    } // Compact
+
+
     /** proper list ではなかったことを知らせる例外
      */
     public static class ProperListExpectedException extends EvalException
@@ -0,0 +1,250 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/** 容量に限りのあるチャネル, つまりスレッド間の FIFO.
+ * 複数の送り手と複数の受け手が同時に使える。
+ * 値は D. Vyukov の有界 MPMC キューの要領で，各枠の通し番号を
+ * CAS で進めて受け渡すから，ロックは使わない。
+ * <p>
+ * 満杯のときの put と空のときの take は，Promise と同じく
+ * LockSupport.park で待つ。モニタを使わないから，仮想スレッドは
+ * キャリア・スレッドを手放して待つ。
+ * <p>
+ * close の後，put は例外を送出し，take は残りの値を返し終えたら
+ * LL.EOF を返す。close は送り手の通し番号に印をつけ，put は
+ * その通し番号を CAS で進めるから，put は close の前か後かの
+ * どちらかに定まる。前ならば値は必ず LL.EOF より先に受け取られ，
+ * 後ならば put は例外を送出する。チャネルは Iterable でもあり，
+ * dolist で閉じるまで値を取り出せる。
+ */
+public final class Channel implements Iterable<Object>
+{
+    /** 空であることを表す値 */
+    private static final Object EMPTY = new Object ();
+
+    /** 閉じられたことを表す putIndex の印 */
+    private static final long CLOSED = 1L << 62;
+
+    private final int capacity;
+    private final int slots;    // 枠の数 (通し番号の区別のため 2 以上)
+    private final AtomicReferenceArray<Object> buffer;
+    private final AtomicLongArray sequence; // 各枠の通し番号
+    private final AtomicLong putIndex = new AtomicLong (); // | CLOSED
+    private final AtomicLong takeIndex = new AtomicLong ();
+    private volatile boolean closed = false;
+    // 待っているスレッド
+    private final ConcurrentLinkedQueue<Thread> putters
+        = new ConcurrentLinkedQueue<Thread> ();
+    private final ConcurrentLinkedQueue<Thread> takers
+        = new ConcurrentLinkedQueue<Thread> ();
+
+    /**
+     * @param capacity 待たずに put できる値の数
+     * @throws IllegalArgumentException capacity が正でない。
+     */
+    public Channel (int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException ("capacity " + capacity);
+        this.capacity = capacity;
+        slots = Math.max(2, capacity);
+        buffer = new AtomicReferenceArray<Object> (slots);
+        sequence = new AtomicLongArray (slots);
+        for (int i = 0; i < slots; i++)
+            sequence.set(i, i);
+    }
+
+    /** 値を送る。満杯ならば空きができるまで待つ。
+     * @param x 任意の Lisp 値 (nil を含む)
+     * @throws EvalException チャネルが閉じられている。
+     */
+    public void put(Object x) throws EvalException {
+        for (;;) {
+            if (offer(x)) {
+                wakeOne(takers);
+                return;
+            }
+            Thread me = Thread.currentThread();
+            putters.add(me);
+            try {
+                // 登録してから確かめるから，起こし損ねることはない。
+                if (! closed && isFull())
+                    park();
+            } finally {
+                putters.remove(me);
+            }
+        }
+    }
+
+    /** 値を受け取る。空ならば値が来るか閉じられるまで待つ。
+     * @return 受け取った値，ただし閉じられて空ならば LL.EOF
+     */
+    public Object take() {
+        for (;;) {
+            Object x = poll();
+            if (x != EMPTY) {
+                wakeOne(putters);
+                return x;
+            }
+            if (closed) {
+                // close の前に番号を得た put がまだ値を書き終えていなければ，
+                // 書き終えるのを待つ。
+                for (;;) {
+                    x = poll();
+                    if (x != EMPTY) {
+                        wakeOne(putters);
+                        return x;
+                    }
+                    if (takeIndex.get() >= (putIndex.get() & ~CLOSED))
+                        return LL.EOF;
+                    Thread.yield();
+                }
+            }
+            Thread me = Thread.currentThread();
+            takers.add(me);
+            try {
+                if (! closed && isEmpty())
+                    park();
+            } finally {
+                takers.remove(me);
+            }
+        }
+    }
+
+    /** チャネルを閉じ，待っているスレッドをすべて起こす。*/
+    public void close() {
+        long pos;
+        do {
+            pos = putIndex.get();
+        } while ((pos & CLOSED) == 0
+                 && ! putIndex.compareAndSet(pos, pos | CLOSED));
+        closed = true;
+        for (Thread t: putters)
+            LockSupport.unpark(t);
+        for (Thread t: takers)
+            LockSupport.unpark(t);
+    }
+
+    /** チャネルが閉じられたか？ */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** 閉じられて空になるまで値を取り出すイテレータを返す。*/
+    public Iterator<Object> iterator() {
+        return new Iterator<Object> () {
+            private Object x = null;
+            private boolean ready = false;
+
+            public boolean hasNext() {
+                if (! ready) {
+                    x = take();
+                    ready = true;
+                }
+                return x != LL.EOF;
+            }
+
+            public Object next() {
+                if (! hasNext())
+                    throw new NoSuchElementException ();
+                ready = false;
+                return x;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException ();
+            }
+        };
+    }
+
+    @Override public String toString() {
+        return String.format("#<channel:%x>", hashCode());
+    }
+
+
+    // 空きがあれば値を入れる。閉じられていれば例外を送出する。
+    private boolean offer(Object x) throws EvalException {
+        long pos = putIndex.get();
+        for (;;) {
+            if ((pos & CLOSED) != 0)
+                throw new EvalException ("channel closed", this);
+            int i = (int) (pos % slots);
+            long d = sequence.get(i) - pos;
+            if (d == 0 && overCapacity(pos)) {
+                return false;
+            } else if (d == 0) {
+                if (putIndex.compareAndSet(pos, pos + 1)) {
+                    buffer.set(i, x);
+                    sequence.set(i, pos + 1); // 受け手に公開する。
+                    return true;
+                }
+                pos = putIndex.get();
+            } else if (d < 0) {
+                return false;   // 満杯
+            } else {
+                pos = putIndex.get();
+            }
+        }
+    }
+
+    // 値があれば取り出す。なければ EMPTY を返す。
+    private Object poll() {
+        long pos = takeIndex.get();
+        for (;;) {
+            int i = (int) (pos % slots);
+            long d = sequence.get(i) - (pos + 1);
+            if (d == 0) {
+                if (takeIndex.compareAndSet(pos, pos + 1)) {
+                    Object x = buffer.get(i);
+                    buffer.set(i, null);
+                    sequence.set(i, pos + slots); // 送り手に返す。
+                    return x;
+                }
+                pos = takeIndex.get();
+            } else if (d < 0) {
+                return EMPTY;
+            } else {
+                pos = takeIndex.get();
+            }
+        }
+    }
+
+    // 枠に空きがあっても，容量 1 のときは値が一つあれば満杯とする。
+    private boolean overCapacity(long pos) {
+        return slots > capacity && pos - takeIndex.get() >= capacity;
+    }
+
+    // 次の offer が失敗するか？
+    private boolean isFull() {
+        long pos = putIndex.get();
+        return sequence.get((int) (pos % slots)) < pos || overCapacity(pos);
+    }
+
+    // 次の poll が失敗するか？
+    private boolean isEmpty() {
+        long pos = takeIndex.get();
+        return sequence.get((int) (pos % slots)) < pos + 1;
+    }
+
+    // 待っているスレッドを一つ起こす。起こしたスレッドは登録から外すから，
+    // 続けて起こすときは別のスレッドが起こされる。
+    private static void wakeOne(ConcurrentLinkedQueue<Thread> waiters) {
+        if (! waiters.isEmpty()) {
+            Thread t = waiters.poll();
+            if (t != null)
+                LockSupport.unpark(t);
+        }
+    }
+
+    private void park() {
+        LockSupport.park(this);
+        if (Thread.interrupted())
+            throw new EvalException ("interrupted");
+    }
+} // Channel
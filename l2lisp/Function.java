@@ -1,4 +1,4 @@
-// H22.7/27, H30.4/8 (鈴)
+// H22.7/27, H30.4/8, R8.10/19 (鈴)
 package l2lisp;
 
 /** Lisp から使うことができる関数の共通基底クラス */
@@ -47,7 +47,7 @@ public abstract class Function
         for (i = 0; i < n && d instanceof Cell; i++) { // 固定引数並びの設定
             Cell c = (Cell) d;
             frame[i] = c.car;
-            d = LL.force(c.cdr);
+            d = LL.force(c.getCdr());
         }
         if (! (i == n && (d == null || (hasRest && d instanceof Cell))))
             throw new EvalException ("arity not matched", carity());
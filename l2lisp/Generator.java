@@ -0,0 +1,239 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** ジェネレータ, つまり yield で値を一つずつ渡す Lisp 関数.
+ * 関数は専用のスレッドで実行される。ジェネレータを作るスレッドが
+ * 仮想スレッドならば仮想スレッドを，さもなくば普通のスレッドを使う。
+ * 普通のスレッドとの間で値を受け渡すには，普通のスレッドの方が速い。
+ * (yield x) は関数の中のどんなに深いループからでも呼べ，値 x を渡して
+ * 次に値が求められるまでそのスレッドを止める。
+ * 二つのスレッドは交互にしか動かないから，Lisp の計算が並行することはない。
+ * <p>
+ * 値は (next g) で，または遅延リストや Iterable として取り出す。
+ * 関数が終わると，(next g) は *eof* を返す。
+ * 取り出す側がジェネレータを捨てれば，止まっていたスレッドは
+ * やがて巻き戻されて終わる (unwind-protect の後始末は実行される)。
+ */
+public final class Generator implements Iterable<Object>
+{
+    /** 止まっているスレッドが，取り出す側が残っているかを確かめる間隔
+     * (ミリ秒) */
+    private static final long CHECK_INTERVAL = 1000;
+
+    private static final ThreadLocal<Body> CURRENT = new ThreadLocal<Body> ();
+
+    private final Body body;
+    private final boolean virtual; // 仮想スレッドで実行するか？
+    // next の排他 (仮想スレッドを止めないようにモニタは使わない)
+    private final ReentrantLock lock = new ReentrantLock ();
+    private boolean started = false;
+    private boolean done = false;
+
+    /**
+     * @param fn 引数のない関数。その中から yield を呼ぶ。
+     * @param interp 関数を実行する Lisp インタープリタ
+     */
+    public Generator (Function fn, IInterp interp) {
+        body = new Body (fn, interp, this);
+        virtual = LL.isVirtual(Thread.currentThread());
+    }
+
+    /** 次の値を求める。
+     * @return 関数が yield した値，または関数が終わっていれば LL.EOF
+     * @throws EvalException 関数の実行時に発生した例外
+     */
+    public Object next() throws EvalException {
+        lock.lock();
+        try {
+            if (done)
+                return LL.EOF;
+            Object x;
+            try {
+                if (started) {
+                    body.toGenerator.put(body);
+                } else {
+                    started = true;
+                    LL.newThread(body, virtual, "l2lisp-generator").start();
+                }
+                x = body.toConsumer.take();
+            } catch (InterruptedException ex) {
+                throw new EvalException ("interrupted");
+            }
+            if (x == Body.END) {
+                done = true;
+                return LL.EOF;
+            } else if (x instanceof Failure) {
+                done = true;
+                throw ((Failure) x).rethrow();
+            } else if (x == Body.NIL) {
+                return null;
+            }
+            return x;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 残りの値を要素とする遅延リストを作る。
+     * 値は要素が force されるたびに一つずつ求められる。
+     * @return 遅延リスト (約束)
+     */
+    public Object toLazyList() {
+        return new Promise (new Rest (this));
+    }
+
+    /** 残りの値を順に与えるイテレータを返す。*/
+    public Iterator<Object> iterator() {
+        return new Iterator<Object> () {
+            private Object x = null;
+            private boolean ready = false;
+
+            public boolean hasNext() {
+                if (! ready) {
+                    x = Generator.this.next();
+                    ready = true;
+                }
+                return x != LL.EOF;
+            }
+
+            public Object next() {
+                if (! hasNext())
+                    throw new NoSuchElementException ();
+                ready = false;
+                return x;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException ();
+            }
+        };
+    }
+
+    @Override public String toString() {
+        return String.format("#<generator:%x>", hashCode());
+    }
+
+    /** (yield x) の実装。
+     * 現在のスレッドを実行しているジェネレータに値を渡し，
+     * 次の値が求められるまで待つ。
+     * @param x 渡す値
+     * @throws EvalException ジェネレータの外から呼ばれた
+     */
+    static void yield(Object x) throws EvalException {
+        Body b = CURRENT.get();
+        if (b == null)
+            throw new EvalException ("yield outside generator", x);
+        b.yield(x);
+    }
+
+
+    /** ジェネレータの関数で起きた例外またはエラー (スタック溢れ等) */
+    private static final class Failure
+    {
+        final Throwable ex;
+
+        Failure (Throwable ex) {
+            this.ex = ex;
+        }
+
+        /** 取り出す側のスレッドで送出し直す。*/
+        RuntimeException rethrow() {
+            if (ex instanceof RuntimeException)
+                throw (RuntimeException) ex;
+            else if (ex instanceof Error)
+                throw (Error) ex;
+            else
+                throw new EvalException ("generator failed", (Exception) ex);
+        }
+    } // Failure
+
+    /** 取り出す側がいなくなったときに，止まっていたスレッドを
+     * 巻き戻すための例外.
+     * Callable は Exception を EvalException に包み，Lisp の catch は
+     * EvalException を捕えるから，それらを素通りして巻き戻せるように
+     * Error とする。unwind-protect の後始末は実行される。
+     */
+    private static final class Abandoned extends Error
+    {
+        Abandoned () {
+            super ("generator abandoned", null, false, false);
+        }
+    } // Abandoned
+
+    /** ジェネレータのスレッドで実行する中身 */
+    private static final class Body implements Runnable
+    {
+        /** 関数が終わったことを表す値 */
+        static final Object END = new Object ();
+
+        /** yield された nil を表す値 (SynchronousQueue は null を
+         * 受け付けない) */
+        static final Object NIL = new Object ();
+
+        final SynchronousQueue<Object> toConsumer
+            = new SynchronousQueue<Object> ();
+        final SynchronousQueue<Object> toGenerator
+            = new SynchronousQueue<Object> ();
+        private final Function fn;
+        private final IInterp interp;
+        private final WeakReference<Generator> owner;
+
+        Body (Function fn, IInterp interp, Generator owner) {
+            this.fn = fn;
+            this.interp = interp;
+            this.owner = new WeakReference<Generator> (owner);
+        }
+
+        public void run() {
+            CURRENT.set(this);
+            Object result;
+            try {
+                fn.apply(null, interp, null);
+                result = END;
+            } catch (Abandoned ex) {
+                return;
+            } catch (Throwable ex) { // 取り出す側を待たせたままにしない。
+                result = new Failure (ex);
+            } finally {
+                CURRENT.remove();
+            }
+            try {
+                toConsumer.put(result);
+            } catch (InterruptedException ex) {
+                // 終わる。
+            }
+        }
+
+        void yield(Object x) {
+            try {
+                toConsumer.put((x == null) ? NIL : x);
+                while (toGenerator.poll(CHECK_INTERVAL,
+                                        TimeUnit.MILLISECONDS) == null)
+                    if (owner.get() == null)
+                        throw new Abandoned ();
+            } catch (InterruptedException ex) {
+                throw new Abandoned ();
+            }
+        }
+    } // Body
+
+    /** ジェネレータの残りの値の遅延リストを作る約束の中身 */
+    private static final class Rest extends Promise.Thunk
+    {
+        private final Generator g;
+
+        Rest (Generator g) {
+            this.g = g;
+        }
+
+        Object force(Promise self) {
+            Object x = g.next();
+            return (x == LL.EOF) ? null : new Cell (x, new Promise (this));
+        }
+    } // Rest
+} // Generator
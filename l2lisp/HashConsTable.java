@@ -0,0 +1,171 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/** ハッシュ・コンシングのための弱参照の正準化表.
+ * 構造的に等しい cons セル，文字列，Double 値を一つのインスタンスに
+ * まとめる。セルは car と cdr がすでに正準化されていることを前提として，
+ * 子のセルを同一性で，その他の値を equals で比較する。
+ * どこからも参照されなくなった値は表から自動的に取り除かれる。
+ * <p>
+ * 正準化されたセルは共有されるから，書き換えてはならない。
+ */
+public final class HashConsTable
+{
+    private Entry[] table = new Entry[16];
+    private int count = 0;      // 表の項目数
+    private long requests = 0;  // 正準化の要求数
+    private long hits = 0;      // 既存のインスタンスを返した数
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<Object> ();
+
+    /** 与えられた car と cdr からなる正準なセルを返す。
+     * @param car 正準化済みの car 値
+     * @param cdr 正準化済みの cdr 値
+     * @return 既存の等しいセル，またはここで新しく作って登録したセル
+     */
+    public synchronized Cell cons(Object car, Object cdr) {
+        expunge();
+        requests++;
+        int h = 31 * hashOf(car) + hashOf(cdr);
+        for (Entry e = table[indexFor(h, table.length)]; e != null;
+             e = e.next)
+            if (e.hash == h) {
+                Object x = e.get();
+                if (x instanceof Cell) {
+                    Cell c = (Cell) x;
+                    if (same(c.car, car) && same(c.cdr, cdr)) {
+                        hits++;
+                        return c;
+                    }
+                }
+            }
+        Cell c = new Cell (car, cdr);
+        add(c, h);
+        return c;
+    }
+
+    /** 文字列または Double 値を正準化する。
+     * @param x 任意の Lisp 値
+     * @return x が文字列か Double 値ならば，それと等しい正準な値。
+     *  さもなくば x そのもの
+     */
+    public synchronized Object intern(Object x) {
+        if (! (x instanceof String || x instanceof Double))
+            return x;
+        expunge();
+        requests++;
+        int h = x.hashCode();
+        for (Entry e = table[indexFor(h, table.length)]; e != null;
+             e = e.next)
+            if (e.hash == h) {
+                Object y = e.get();
+                if (x.equals(y)) {
+                    hits++;
+                    return y;
+                }
+            }
+        add(x, h);
+        return x;
+    }
+
+    /** 表に生きている項目の数を返す。
+     * @return 正準なインスタンスの個数
+     */
+    public synchronized int size() {
+        expunge();
+        return count;
+    }
+
+    /** これまでの正準化の要求数を返す。
+     * @return cons と intern (文字列と Double 値) の呼出し回数
+     */
+    public synchronized long getRequests() {
+        return requests;
+    }
+
+    /** これまでに既存のインスタンスを返した回数を返す。
+     * @return 重複が除かれた値の個数
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    private static int hashOf(Object x) {
+        if (x == null)
+            return 0;
+        else if (x instanceof Cell) // 子のセルは正準だから同一性で
+            return System.identityHashCode(x);
+        else
+            return x.hashCode();
+    }
+
+    private static boolean same(Object x, Object y) {
+        if (x == y)
+            return true;
+        else if (x == null || y == null || x instanceof Cell)
+            return false;
+        else
+            return x.getClass() == y.getClass() && x.equals(y);
+    }
+
+    private static int indexFor(int h, int length) {
+        h ^= (h >>> 16);
+        return h & (length - 1);
+    }
+
+    private void add(Object x, int h) {
+        int i = indexFor(h, table.length);
+        table[i] = new Entry (x, h, table[i], queue);
+        if (++count > table.length - (table.length >> 2))
+            resize();
+    }
+
+    // 表の大きさを倍にする。
+    private void resize() {
+        Entry[] newTable = new Entry[table.length * 2];
+        for (Entry e: table)
+            while (e != null) {
+                Entry next = e.next;
+                int i = indexFor(e.hash, newTable.length);
+                e.next = newTable[i];
+                newTable[i] = e;
+                e = next;
+            }
+        table = newTable;
+    }
+
+    // 回収された値の項目を取り除く。
+    private void expunge() {
+        Object r;
+        while ((r = queue.poll()) != null) {
+            Entry x = (Entry) r;
+            int i = indexFor(x.hash, table.length);
+            Entry prev = null;
+            for (Entry e = table[i]; e != null; prev = e, e = e.next)
+                if (e == x) {
+                    if (prev == null)
+                        table[i] = e.next;
+                    else
+                        prev.next = e.next;
+                    count--;
+                    break;
+                }
+        }
+    }
+
+
+    /** 表の項目 */
+    private static final class Entry extends WeakReference<Object>
+    {
+        final int hash;
+        Entry next;
+
+        Entry (Object x, int hash, Entry next, ReferenceQueue<Object> q) {
+            super (x, q);
+            this.hash = hash;
+            this.next = next;
+        }
+    } // Entry
+} // HashConsTable
@@ -1,16 +1,21 @@
-// H22.8/17, H30.4/8 (鈴)
+// H22.8/17, H30.4/8, R8.10/19 (鈴)
 package l2lisp;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.IOException;
 import java.io.PrintWriter;
 
-/** Lisp インタープリタ本体
+/** Lisp インタープリタ本体.
+ * 複数のスレッドから同時に eval や run を呼んでもよい。
+ * 大域変数の表は並行にアクセスでき，約束は一度だけ果たされる。
+ * ただし大域変数の読み書きや (read) と印字の順序はスレッド間で
+ * 同期されないから，必要ならば Lisp 側で調停すること。
  */
 public class Interp implements IInterp
 {
-    private final Map<Symbol, Object> symbols
-        = new NameMap<Symbol, Object> (); // シンボルから大域変数値への表
+    private final SymbolTable symbols; // シンボルから大域変数値への表
     private LispReader reader;  // Lisp から (read) するときに使う
     private PrintWriter writer; // Lisp から印字するときに使う
 
@@ -36,6 +41,7 @@ public class Interp implements IInterp
         if (output == null)
             output = new PrintWriter (System.out, true);
 
+        symbols = new SymbolTable ();
         reader = new LispReader (input);
         writer = output;
         symbols.put(LL.S_ERROR, LL.S_ERROR);
@@ -44,6 +50,78 @@ public class Interp implements IInterp
         symbols.put(Symbol.of("*eof*"), LL.EOF);
     }
 
+    // fork で使う。
+    private Interp (SymbolTable symbols, LispReader reader,
+                    PrintWriter writer) {
+        this.symbols = symbols;
+        this.reader = reader;
+        this.writer = writer;
+    }
+
+    /** 大域変数を共有する新しいインタープリタを作る。
+     * 子は親の大域変数のその時点の値から始まり，その後の互いの
+     * setq 等は見えない。大域変数の表は書き換えたものだけを子が持つ
+     * (コピー・オン・ライト) から，組込み関数と Prelude を読み込んだ
+     * インタープリタを何度 fork しても安価である。
+     * 親から受け継いだ値のうち，リスト，ベクトル，構造体，文字列の
+     * 組立て器とクロージャは，子が初めてその変数を読むときに
+     * Actor.copy で複製する。だから子が rplaca 等をしても親や
+     * 他の子には見えない。ただし約束，アトム，チャネル，関数の中の
+     * 定数などは共有する。
+     * 入力と出力は親と共有する。ハッシュ・コンシングの設定と表は
+     * 親から引き継ぐが，その後の (hash-consing flag) は互いに見えない。
+     * @return 新しいインタープリタ
+     */
+    public Interp fork() {
+        return new Interp (symbols.fork(), new LispReader (reader), writer);
+    }
+
+    /** 入力と出力を指定して，大域変数を共有する新しいインタープリタを
+     * 作る。引数が null ならばそれぞれ親と同じものが使われる。
+     * ハッシュ・コンシングの設定と表は fork() と同じく親から引き継ぐ。
+     * @param input null または Lisp の入力もと
+     * @param output null または Lisp の出力さき
+     * @return 新しいインタープリタ
+     * @see #fork()
+     */
+    public Interp fork(IInput input, PrintWriter output) {
+        LispReader lr;
+        if (input == null) {
+            lr = new LispReader (reader);
+        } else {
+            lr = new LispReader (input);
+            lr.setHashConsTable(reader.getHashConsTable());
+        }
+        if (output == null)
+            output = writer;
+        return new Interp (symbols.fork(), lr, output);
+    }
+
+    /** fork で作ったインタープリタを，fork した時点の状態に戻す。
+     * 大域変数の表から自分が書いた変数を捨て，入力と出力とハッシュ・
+     * コンシングの設定を base のものにする。評価中のスレッドがないときに
+     * 呼ぶこと。
+     * @param base fork したインタープリタ
+     * @return 戻した大域変数の数
+     * @throws IllegalStateException fork で作ったインタープリタでない。
+     * @see InterpPool
+     */
+    int reset(Interp base) {
+        int n = symbols.reset();
+        reader = new LispReader (base.reader);
+        writer = base.writer;
+        return n;
+    }
+
+    /** Lisp から印字するときに使う書き込み器を取り替える。
+     * @param output Lisp の print 関数などの新しい出力さき
+     */
+    public void setWriter(PrintWriter output) {
+        if (output == null)
+            throw new NullPointerException ();
+        writer = output;
+    }
+
     // IInterp のメソッドの実装
     public Map<Symbol, Object> getSymbolTable() {
         return symbols;
@@ -76,6 +154,8 @@ public class Interp implements IInterp
             Object result = null;
             for (;;) {
                 try {
+                    // (hash-consing flag) の変更を次の式から反映させる。
+                    lr.setHashConsTable(reader.getHashConsTable());
                     Object x = lr.read();
                     if (x == LL.EOF)
                         return result;
@@ -94,6 +174,20 @@ public class Interp implements IInterp
         }
     }
 
+    /** ハッシュ・コンシングするかどうかを設定する。
+     * 真ならば，(read) と以後の run で読み取る式を弱参照の表で
+     * 正準化し，構造的に等しいデータを共有させる。
+     * 表は getReader().getHashConsTable() で得られる。
+     * @param enabled 真ならばハッシュ・コンシングする。
+     * @see HashConsTable
+     */
+    public void setHashConsing(boolean enabled) {
+        if (! enabled)
+            reader.setHashConsTable(null);
+        else if (reader.getHashConsTable() == null)
+            reader.setHashConsTable(new HashConsTable ());
+    }
+
     /** 文字列に書かれたスクリプトを評価する便宜メソッド.
      * @param text ここに書かれた式を次々と評価する。
      * @return 最後に書かれた式の評価結果
@@ -114,13 +208,21 @@ public class Interp implements IInterp
         try {
             for (;;) {
                 if (x instanceof Symbol) {
-                    if (symbols.containsKey(x))
-                        return symbols.get(x);
+                    Object value = symbols.lookup((Symbol) x);
+                    if (value != SymbolTable.UNBOUND)
+                        return value;
                     else if (x instanceof Symbol.Keyword)
                         return x;
                     throw new EvalException ("void variable", x);
                 } else if (x instanceof Arg) {
                     return ((Arg) x).getValue(env);
+                } else if (x instanceof SlotAccess) {
+                    return ((SlotAccess) x).evalWith(this, env);
+                } else if (x instanceof DoSeq) {
+                    return ((DoSeq) x).evalWith(this, env);
+                } else if (x instanceof Delay) {
+                    Delay d = (Delay) x;
+                    return new Promise (d.exp, d.capture(env), this);
                 } else if (x instanceof Cell) {
                     Cell xc = (Cell) x;
                     Object fn = xc.car;
@@ -151,6 +253,8 @@ public class Interp implements IInterp
                             if (arg.cdr == null)
                                 return new Promise (arg.car, env, this);
                             throw new EvalException ("bad delay");
+                        } else if (fn == LL.S_DO_SEQ) {
+                            return compileDoSeq(xc).evalWith(this, env);
                         } else {
                             throw new EvalException ("bad keyword", fn);
                         }
@@ -264,6 +368,8 @@ public class Interp implements IInterp
         body = (Cell) scanForArgs(body, table);
         body = (Cell) expandMacros(body, LL.MAX_MACRO_EXPS);
         body = (Cell) compileInners(body);
+        if (factory != Lambda.FACTORY) // 入れ子でない本体ならば
+            Delay.prepare(body, arity);
         return factory.make(arity, hasRest, body, env);
     }
 
@@ -279,8 +385,11 @@ public class Interp implements IInterp
             if (k == LL.S_QUOTE || k == LL.S_LAMBDA || k == LL.S_MACRO) {
                 return j;
             } else {
-                if (k instanceof Symbol && symbols.containsKey(k))
-                    k = symbols.get(k);
+                if (k instanceof Symbol) {
+                    Object value = symbols.lookup((Symbol) k);
+                    if (value != SymbolTable.UNBOUND)
+                        k = value;
+                }
                 if (k instanceof Macro) {
                     Cell jcdr = jc.getCdrCell();
                     Object z = ((Macro) k).expandWith(jcdr, this);
@@ -299,7 +408,38 @@ public class Interp implements IInterp
         }
     }
 
+    /** (do-seq (name sequence [result]) body...) をコンパイルする。
+     * name を仮引数，result と body を本体とするラムダ式として
+     * コンパイルし，そのフレームを繰返しの間で使い回す。
+     * @param form do-seq 式
+     * @return コンパイルした式
+     */
+    private DoSeq compileDoSeq(Cell form) {
+        Cell arg = form.getCdrCell();
+        if (arg == null || ! (arg.car instanceof Cell))
+            throw new EvalException ("(name sequence [result]) expected",
+                                     form);
+        Cell spec = (Cell) arg.car;
+        Cell rest = spec.getCdrCell();
+        if (rest == null)
+            throw new EvalException ("sequence expected", form);
+        Cell r = rest.getCdrCell();
+        if (r != null && r.cdr != null)
+            throw new EvalException ("too many arguments", spec);
+        Object result = (r == null) ? null : r.car;
+        Object seq = compileInners(rest.car);
+        Cell lambda = new Cell (new Cell (spec.car, null),
+                                new Cell (result, arg.getCdrCell()));
+        Lambda fn = (Lambda) compile(Lambda.FACTORY, lambda, null);
+        if (fn.getArity() != 1 || fn.hasRest())
+            throw new EvalException ("variable expected", spec.car);
+        return new DoSeq (spec.car, seq, fn, r != null);
+    }
+
     /** 入れ子のラムダ式を Lambda インスタンスに置き換える。
+     * また，構造体のスロットの読み書きを SlotAccess インスタンスに，
+     * (delay e) を Delay インスタンスに，(do-seq ...) を DoSeq
+     * インスタンスにそれぞれ置き換える。
      * @param j 元の式
      * @return 置き換えた式
      */
@@ -314,13 +454,26 @@ public class Interp implements IInterp
                 return compile(Lambda.FACTORY, jcdr, null);
             } else if (k == LL.S_MACRO) {
                 throw new EvalException ("nested macro", j);
+            } else if (k == LL.S_DELAY) {
+                Cell jcdr = jc.getCdrCell();
+                if (jcdr == null || jcdr.cdr != null)
+                    throw new EvalException ("bad delay", j);
+                return new Delay (compileInners(jcdr.car));
+            } else if (k == LL.S_DO_SEQ) {
+                return compileDoSeq(jc);
             } else {
                 LL.IUnary fn = new LL.IUnary () {
                     public Object apply(Object x) {
                         return compileInners(x);
                     }
                 };
-                return jc.mapcar(fn);
+                Cell z = jc.mapcar(fn);
+                if (k instanceof Symbol) {
+                    SlotAccess sa = SlotAccess.of(symbols.get(k), z);
+                    if (sa != null)
+                        return sa;
+                }
+                return z;
             }
         } else {
             return j;
@@ -492,6 +645,173 @@ public class Interp implements IInterp
         }
     }
 
+    /** 大域変数の表.
+     * 複数のスレッドから読み書きできるように ConcurrentHashMap で実装する。
+     * ConcurrentHashMap は null を値にできないから，nil は NIL で表す。
+     * キーワードは除外する。
+     * <p>
+     * fork で作った表は，親の表のその時点の写しを読出し専用の base として
+     * 共有し，自分が書いた変数だけを map に持つ (コピー・オン・ライト)。
+     * 写しは親が書き換えられるまで使い回すから，変わらない親から
+     * 何度 fork しても表を複製しない。
+     */
+    private static final class SymbolTable extends AbstractMap<Symbol, Object>
+    {
+        /** lookup で，変数がないことを表す値 */
+        static final Object UNBOUND = new Object ();
+
+        /** 表の中で nil を表す値 */
+        private static final Object NIL = new Object ();
+
+        /** base にある変数を map で消したことを表す値 */
+        private static final Object REMOVED = new Object ();
+
+        private final Map<Symbol, Object> base; // 共有する写し，または null
+        // 自分が書いた変数 (reset で丸ごと取り替える)
+        private ConcurrentHashMap<Symbol, Object> map
+            = new ConcurrentHashMap<Symbol, Object> ();
+        // map を書き換えるたびに増える
+        private final AtomicInteger version = new AtomicInteger ();
+        private volatile Snapshot snapshot = null; // fork で使った写し
+
+        SymbolTable () {
+            this (null);
+        }
+
+        private SymbolTable (Map<Symbol, Object> base) {
+            this.base = base;
+        }
+
+        /** 変数の値を返す。ただし変数がなければ UNBOUND を返す。
+         * containsKey と get の組よりも速く，その間に変数が消える心配もない。
+         */
+        Object lookup(Symbol k) {
+            Object v = map.get(k);
+            if (v == null) {
+                if (base == null)
+                    return UNBOUND;
+                v = base.get(k);
+                if (v == null)
+                    return UNBOUND;
+                if (isMutable(v)) { // 初めて読むときに自分用に複製する。
+                    Object c = Actor.copy(v);
+                    Object w = map.putIfAbsent(k, c);
+                    v = (w == null) ? c : w;
+                }
+            }
+            return (v == NIL) ? null : (v == REMOVED) ? UNBOUND : v;
+        }
+
+        // fork した表が共有せずに複製すべき値か？
+        private static boolean isMutable(Object v) {
+            return v instanceof Cell || v instanceof Object[] ||
+                v instanceof AdjustableVector || v instanceof Struct ||
+                v instanceof StringBuilder || v instanceof int[] ||
+                v instanceof long[] || v instanceof double[] ||
+                v instanceof byte[] || v instanceof char[] ||
+                (v instanceof Closure && ((Closure) v).env != null);
+        }
+
+        /** 現在の内容を写しとして共有する新しい表を作る。*/
+        SymbolTable fork() {
+            int v = version.get();
+            Snapshot s = snapshot;
+            if (s == null || s.version != v) {
+                Map<Symbol, Object> m;
+                if (map.isEmpty() && base != null) {
+                    m = base;
+                } else {
+                    m = (base == null) ? new HashMap<Symbol, Object> () :
+                        new HashMap<Symbol, Object> (base);
+                    for (Map.Entry<Symbol, Object> e: map.entrySet())
+                        if (e.getValue() == REMOVED)
+                            m.remove(e.getKey());
+                        else
+                            m.put(e.getKey(), e.getValue());
+                }
+                s = new Snapshot (m, v);
+                snapshot = s;
+            }
+            return new SymbolTable (s.map);
+        }
+
+        /** fork で作った表を，fork した時点の内容に戻す。
+         * 書いた変数を表ごと捨てるから，書いた変数の数しか手間がかからない。
+         * @return 戻した変数の数
+         * @throws IllegalStateException fork で作った表でない。
+         */
+        int reset() {
+            if (base == null)
+                throw new IllegalStateException ("not forked");
+            int n = map.size();
+            if (n != 0) {
+                map = new ConcurrentHashMap<Symbol, Object> ();
+                version.incrementAndGet();
+            }
+            return n;
+        }
+
+        @Override public Object get(Object k) {
+            if (! (k instanceof Symbol))
+                return null;
+            Object v = lookup((Symbol) k);
+            return (v == UNBOUND) ? null : v;
+        }
+
+        @Override public boolean containsKey(Object k) {
+            return k instanceof Symbol && lookup((Symbol) k) != UNBOUND;
+        }
+
+        @Override public Object put(Symbol k, Object v) {
+            if (k instanceof Symbol.Keyword)
+                throw new EvalException ("keyword not expected", k);
+            Object old = lookup(k);
+            map.put(k, (v == null) ? NIL : v);
+            version.incrementAndGet();
+            return (old == UNBOUND) ? null : old;
+        }
+
+        @Override public Object remove(Object k) {
+            Object old = get(k);
+            if (base != null && base.containsKey(k))
+                map.put((Symbol) k, REMOVED);
+            else
+                map.remove(k);
+            version.incrementAndGet();
+            return old;
+        }
+
+        /** 呼ばれた時点の内容の，変更できない写しを返す。*/
+        @Override public Set<Map.Entry<Symbol, Object>> entrySet() {
+            HashMap<Symbol, Object> m = new HashMap<Symbol, Object> ();
+            if (base != null)
+                for (Map.Entry<Symbol, Object> e: base.entrySet())
+                    m.put(e.getKey(), unmask(e.getValue()));
+            for (Map.Entry<Symbol, Object> e: map.entrySet())
+                if (e.getValue() == REMOVED)
+                    m.remove(e.getKey());
+                else
+                    m.put(e.getKey(), unmask(e.getValue()));
+            return Collections.unmodifiableMap(m).entrySet();
+        }
+
+        private static Object unmask(Object v) {
+            return (v == NIL) ? null : v;
+        }
+
+        /** fork で共有する写しと，それを作ったときの version */
+        private static final class Snapshot
+        {
+            final Map<Symbol, Object> map;
+            final int version;
+
+            Snapshot (Map<Symbol, Object> map, int version) {
+                this.map = map;
+                this.version = version;
+            }
+        } // Snapshot
+    } // SymbolTable
+
     /** 変数があるべき場所に，変数がなかったことを知らせる例外
      */
     private static class VariableExpectedException extends EvalException
@@ -539,6 +859,407 @@ public class Interp implements IInterp
     } // Arg
 
 
+    /** コンパイル後の構造体のスロットの読出し (NAME-SLOT x)
+     * または書込み (set-NAME-SLOT x value).
+     * 関数を呼び出さずに直接スロットを読み書きする。
+     * 置き換えはコンパイル時に大域変数が指していた関数による。
+     */
+    private static final class SlotAccess
+    {
+        final Callable fn;      // Struct.Accessor または Struct.Setter
+        final Struct.Type type;
+        final int index;
+        final Object x;         // 構造体を与える式
+        final Object value;     // 書込む値を与える式 (書込みのとき)
+        final boolean isSetter;
+
+        private SlotAccess (Callable fn, Struct.Type type, int index,
+                            Object x, Object value, boolean isSetter) {
+            this.fn = fn;
+            this.type = type;
+            this.index = index;
+            this.x = x;
+            this.value = value;
+            this.isSetter = isSetter;
+        }
+
+        /** 関数呼出し式 (f ...) に対するスロットの読み書きを作る。
+         * @param fn f の大域的な値
+         * @param form 関数呼出し式
+         * @return fn が読出しまたは書込みの関数で，実引数の個数が
+         *   合っていれば SlotAccess インスタンス，さもなくば null
+         */
+        static SlotAccess of(Object fn, Cell form) {
+            Cell arg = form.getCdrCell();
+            if (arg == null)
+                return null;
+            Cell rest = arg.getCdrCell();
+            if (fn instanceof Struct.Accessor && rest == null) {
+                Struct.Accessor a = (Struct.Accessor) fn;
+                return new SlotAccess (a, a.type, a.index, arg.car,
+                                       null, false);
+            } else if (fn instanceof Struct.Setter && rest != null &&
+                       rest.getCdrCell() == null) {
+                Struct.Setter s = (Struct.Setter) fn;
+                return new SlotAccess (s, s.type, s.index, arg.car,
+                                       rest.car, true);
+            } else {
+                return null;
+            }
+        }
+
+        Object evalWith(Interp interp, Cell env) {
+            Object s = LL.force(interp.eval(x, env));
+            Object[] slots = Struct.cast(s, type).slots;
+            if (isSetter) {
+                Object v = interp.eval(value, env);
+                slots[index] = v;
+                return v;       // 値は約束のままかもしれない
+            } else {
+                return slots[index];
+            }
+        }
+
+        @Override public String toString() {
+            return (isSetter) ?
+                LL.str(LL.list(Symbol.of(fn.getName()), x, value)) :
+                LL.str(LL.list(Symbol.of(fn.getName()), x));
+        }
+    } // SlotAccess
+
+
+    /** コンパイル後の (delay e).
+     * 約束に環境をまるごと渡さず，e が使う変数だけを捕捉した環境を渡す。
+     * これにより，果たされていない約束が，不要になった外側の変数の値
+     * (例えば読み終えたリストの先頭) を保持し続けることを防ぐ。
+     * <p>
+     * 捕捉した環境は元の環境と同じ形をとり，e の中の Arg をそのまま使う。
+     * 使わないレベルのフレームは null とし，最も外側の使うレベルより外は
+     * 切り捨てる。フレームは使うスロットだけを写した複製とする。
+     * ただし，使うスロットのどれかが setq で書き換えられうるか，
+     * すべてのスロットを使うならば，フレームを共有する。
+     */
+    private static final class Delay
+    {
+        final Object exp;
+        private final int[][] slots; // レベルごとの使うオフセット，または null
+        private boolean[][] masks = null; // レベルごとの書き換えの有無
+        private boolean[] share = null;   // レベルごとにフレームを共有するか
+        private boolean whole = false;    // 環境をそのまま使えるか
+
+        Delay (Object exp) {
+            this.exp = exp;
+            TreeMap<Integer, TreeSet<Integer>> used
+                = new TreeMap<Integer, TreeSet<Integer>> ();
+            collect(exp, 0, used);
+            int n = used.isEmpty() ? 0 : used.lastKey() + 1;
+            slots = new int[n][];
+            for (Map.Entry<Integer, TreeSet<Integer>> e: used.entrySet()) {
+                int[] a = new int[e.getValue().size()];
+                int i = 0;
+                for (int offset: e.getValue())
+                    a[i++] = offset;
+                slots[e.getKey()] = a;
+            }
+        }
+
+        // 式 j が使う変数を，深さ depth のラムダ式の中として集める。
+        private static void collect(Object j, int depth,
+                                    TreeMap<Integer, TreeSet<Integer>> used) {
+            if (j instanceof Arg) {
+                Arg a = (Arg) j;
+                if (a.level >= depth) {
+                    TreeSet<Integer> s = used.get(a.level - depth);
+                    if (s == null) {
+                        s = new TreeSet<Integer> ();
+                        used.put(a.level - depth, s);
+                    }
+                    s.add(a.offset);
+                }
+            } else if (j instanceof Cell) {
+                if (((Cell) j).car != LL.S_QUOTE)
+                    for (Object x: (Cell) j)
+                        collect(x, depth, used);
+            } else if (j instanceof Lambda) {
+                collect(((Lambda) j).body, depth + 1, used);
+            } else if (j instanceof Delay) {
+                collect(((Delay) j).exp, depth, used);
+            } else if (j instanceof DoSeq) {
+                collect(((DoSeq) j).seq, depth, used);
+                collect(((DoSeq) j).fn.body, depth + 1, used);
+            } else if (j instanceof SlotAccess) {
+                collect(((SlotAccess) j).x, depth, used);
+                collect(((SlotAccess) j).value, depth, used);
+            }
+        }
+
+        /** 入れ子でない関数の本体について，その中の各 Delay が
+         * フレームを共有すべきかどうかを決める。
+         * 本体の中の Arg はすべてこの本体の中のフレームを指すから，
+         * 書き換えられうる変数は本体を調べれば分かる。
+         * @param body コンパイル済みの本体
+         * @param arity 本体のフレームの大きさ
+         */
+        static void prepare(Cell body, int arity) {
+            ArrayList<boolean[]> frames = new ArrayList<boolean[]> ();
+            ArrayList<Delay> delays = new ArrayList<Delay> ();
+            frames.add(new boolean[arity]);
+            scan(body, frames, delays);
+            for (Delay d: delays)
+                d.plan();
+        }
+
+        // 書き換えられる変数に印をつけ，Delay を集める。
+        // frames は外側から順に並べたフレームごとの印である。
+        private static void scan(Object j, ArrayList<boolean[]> frames,
+                                 ArrayList<Delay> delays) {
+            if (j instanceof Cell) {
+                Cell jc = (Cell) j;
+                if (jc.car == LL.S_QUOTE)
+                    return;
+                if (jc.car == LL.S_SETQ)
+                    for (Cell k = jc.getCdrCell(); k != null;
+                         k = (k.getCdrCell() == null) ? null :
+                             k.getCdrCell().getCdrCell())
+                        if (k.car instanceof Arg) {
+                            Arg a = (Arg) k.car;
+                            int i = frames.size() - 1 - a.level;
+                            if (i >= 0)
+                                frames.get(i)[a.offset] = true;
+                        }
+                for (Object x: jc)
+                    scan(x, frames, delays);
+            } else if (j instanceof Lambda) {
+                Lambda lm = (Lambda) j;
+                frames.add(new boolean[lm.getArity()]);
+                scan(lm.body, frames, delays);
+                frames.remove(frames.size() - 1);
+            } else if (j instanceof DoSeq) {
+                // 繰返しのたびに書き換わるフレームだから，setq されたものと
+                // みなして共有する。こうして，入れ子でない本体の中でも
+                // 外でも，約束はクロージャと同じくそのフレームを見る。
+                DoSeq ds = (DoSeq) j;
+                scan(ds.seq, frames, delays);
+                boolean[] mask = new boolean[ds.fn.getArity()];
+                Arrays.fill(mask, true);
+                frames.add(mask);
+                scan(ds.fn.body, frames, delays);
+                frames.remove(frames.size() - 1);
+            } else if (j instanceof Delay) {
+                Delay d = (Delay) j;
+                int n = Math.min(d.slots.length, frames.size());
+                d.masks = new boolean[n][];
+                for (int i = 0; i < n; i++)
+                    d.masks[i] = frames.get(frames.size() - 1 - i);
+                delays.add(d);
+                scan(d.exp, frames, delays);
+            } else if (j instanceof SlotAccess) {
+                scan(((SlotAccess) j).x, frames, delays);
+                scan(((SlotAccess) j).value, frames, delays);
+            }
+        }
+
+        // 書き換えの印から，レベルごとにフレームを共有するかを決める。
+        private void plan() {
+            if (masks.length < slots.length)
+                return;         // ありえないが，そのときは環境をそのまま使う
+            boolean[] s = new boolean[slots.length];
+            boolean w = true;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] == null) {
+                    w = false;
+                    continue;
+                }
+                s[i] = (slots[i].length == masks[i].length);
+                for (int offset: slots[i])
+                    s[i] |= masks[i][offset];
+                w &= s[i];
+            }
+            share = s;
+            whole = w;
+        }
+
+        /** 約束のために，環境から使う変数だけを捕捉する。
+         * @param env 現在の環境
+         * @return 捕捉した環境
+         */
+        Cell capture(Cell env) {
+            if (share == null)
+                return env;
+            int n = slots.length;
+            if (n == 0)
+                return null;
+            Object[] frames = new Object[n];
+            Cell e = env;
+            for (int i = 0; i < n; i++) {
+                frames[i] = e.car;
+                if (i < n - 1)
+                    e = (Cell) e.cdr;
+            }
+            if (whole && e.cdr == null)
+                return env;
+            Cell z = null;
+            for (int i = n - 1; i >= 0; i--) {
+                Object f = null;
+                if (slots[i] != null) {
+                    if (share[i]) {
+                        f = frames[i];
+                    } else {
+                        Object[] src = (Object[]) frames[i];
+                        Object[] dst = new Object[src.length];
+                        for (int offset: slots[i])
+                            dst[offset] = src[offset];
+                        f = dst;
+                    }
+                }
+                z = new Cell (f, z);
+            }
+            return z;
+        }
+
+        @Override public String toString() {
+            return LL.str(LL.list(LL.S_DELAY, exp));
+        }
+    } // Delay
+
+
+    /** コンパイル後の (do-seq (name sequence [result]) body...).
+     * 列の種類ごとに Java のループで要素をたどる。
+     * 変数 name のフレームは一度だけ作り，要素ごとに書き換えて使う。
+     * したがって，本体で作ったクロージャや約束は最後の要素を見る
+     * (result があるときは nil を見る)。
+     */
+    private static final class DoSeq
+    {
+        private final Object name; // 印字用
+        final Object seq;       // 列を与える式
+        final Lambda fn;        // 本体 (result body...) と変数 name
+        private final Object[] forms; // body の各式
+        private final boolean hasResult; // result があるか？
+
+        DoSeq (Object name, Object seq, Lambda fn, boolean hasResult) {
+            this.name = name;
+            this.hasResult = hasResult;
+            this.seq = seq;
+            this.fn = fn;
+            ArrayList<Object> a = new ArrayList<Object> ();
+            for (Cell j = fn.body.getCdrCell(); j != null; j = j.getCdrCell())
+                a.add(j.car);
+            forms = a.toArray();
+        }
+
+        Object evalWith(Interp interp, Cell env) {
+            Object s = LL.force(interp.eval(seq, env));
+            Object[] frame = new Object[1];
+            Cell e = new Cell (frame, env);
+            if (s == null) {
+                // 何もしない。
+            } else if (s instanceof Cell) {
+                // 先頭を保持せずにたどり，遅延リストを一定のメモリで処理する。
+                Object j = s;
+                s = null;
+                Cell owner = null;
+                for (;;) {
+                    if (j instanceof Cell) {
+                        owner = (Cell) j;
+                        j = owner.cdr;
+                        frame[0] = owner.car;
+                        run(interp, e);
+                    } else if (j == null) {
+                        break;
+                    } else if (j instanceof Cell.Compact) {
+                        Cell.Compact c = (Cell.Compact) j;
+                        Object[] v = c.elements;
+                        for (int i = c.index; i < v.length; i++) {
+                            frame[0] = v[i];
+                            run(interp, e);
+                        }
+                        break;
+                    } else if (j instanceof Cell.Tail) {
+                        j = ((Cell.Tail) j).get(owner);
+                    } else if (j instanceof Promise) {
+                        j = ((Promise) j).deliver();
+                    } else {
+                        throw new Cell.ProperListExpectedException (owner);
+                    }
+                }
+            } else if (s instanceof Object[]) {
+                Object[] v = (Object[]) s;
+                for (int i = 0; i < v.length; i++) {
+                    frame[0] = v[i];
+                    run(interp, e);
+                }
+            } else if (s instanceof AdjustableVector) {
+                AdjustableVector v = (AdjustableVector) s;
+                for (int i = 0; i < v.size(); i++) {
+                    frame[0] = v.get(i);
+                    run(interp, e);
+                }
+            } else if (s instanceof CharSequence) { // 文字列やロープ
+                String v = s.toString();
+                for (int i = 0, n = v.length(); i < n; i++) {
+                    frame[0] = (int) v.charAt(i);
+                    run(interp, e);
+                }
+            } else if (s instanceof int[]) {
+                int[] v = (int[]) s;
+                for (int i = 0; i < v.length; i++) {
+                    frame[0] = v[i];
+                    run(interp, e);
+                }
+            } else if (s instanceof double[]) {
+                double[] v = (double[]) s;
+                for (int i = 0; i < v.length; i++) {
+                    frame[0] = v[i];
+                    run(interp, e);
+                }
+            } else if (s instanceof long[]) {
+                long[] v = (long[]) s;
+                for (int i = 0; i < v.length; i++) {
+                    frame[0] = BuiltInFunctions.reg(v[i]);
+                    run(interp, e);
+                }
+            } else if (s instanceof byte[]) {
+                byte[] v = (byte[]) s;
+                for (int i = 0; i < v.length; i++) {
+                    frame[0] = (int) v[i];
+                    run(interp, e);
+                }
+            } else if (s instanceof char[]) {
+                char[] v = (char[]) s;
+                for (int i = 0; i < v.length; i++) {
+                    frame[0] = (int) v[i];
+                    run(interp, e);
+                }
+            } else if (s instanceof Iterable) {
+                for (Object x: (Iterable) s) {
+                    frame[0] = x;
+                    run(interp, e);
+                }
+            } else {
+                throw new EvalException ("sequence expected", s);
+            }
+            if (! hasResult)
+                return null;
+            frame[0] = null;    // result は name を nil として評価する。
+            return interp.eval(fn.body.car, e);
+        }
+
+        private void run(Interp interp, Cell env) {
+            for (Object x: forms)
+                interp.eval(x, env);
+        }
+
+        @Override public String toString() {
+            Object[] a = new Object[forms.length + 2];
+            a[0] = LL.S_DO_SEQ;
+            a[1] = LL.list(name, seq, fn.body.car);
+            System.arraycopy(forms, 0, a, 2, forms.length);
+            return LL.str(LL.list(a));
+        }
+    } // DoSeq
+
+
     /** コンパイル後のマクロ式の dummy symbol */
     private static final class Dummy
     {
@@ -699,4 +1420,23 @@ public class Interp implements IInterp
                 }
             };
     } // Closure
+
+
+    /** クロージャの環境を返す。Actor.copy が使う。
+     * @param x 任意の Lisp 値
+     * @return x がクロージャならばその環境，さもなくば null
+     */
+    static Cell getClosureEnv(Object x) {
+        return (x instanceof Closure) ? ((Closure) x).env : null;
+    }
+
+    /** 環境だけを取り替えたクロージャを作る。Actor.copy が使う。
+     * @param x クロージャ
+     * @param env 新しい環境
+     * @return 新しいクロージャ
+     */
+    static Function withClosureEnv(Object x, Cell env) {
+        Closure c = (Closure) x;
+        return new Closure (c.getArity(), c.hasRest(), c.body, env);
+    }
 } // Interp
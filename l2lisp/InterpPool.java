@@ -0,0 +1,231 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/** 組込み関数と Prelude を読み込み済みのインタープリタのプール.
+ * 貸し出すインタープリタは基準となるインタープリタを Interp.fork で
+ * 複製したものである。返されたインタープリタは，その大域変数の表から
+ * 書き換えられた変数だけを捨てて基準の状態に戻し，次の貸出しに使う。
+ * だから戻す手間は書き換えられた大域変数の数にしか比例しない。
+ * <p>
+ * 同時に貸し出す数には上限がある。上限に達しているとき borrow は
+ * 返却を待つ。待ち時間と戻す手間は統計として記録する。
+ * 貸し出し中のインタープリタは記録しておき，それ以外のものの返却
+ * (二重の返却を含む) は拒む。
+ * <p>
+ * 基準から受け継いだリストやベクトル等は，貸し出した先で初めて
+ * 読むときに複製されるから，破壊的に変更しても基準や他の貸出し先には
+ * 見えない。ただしアトムやチャネル等は共有する (Interp.fork 参照)。
+ * @see Interp#fork()
+ */
+public final class InterpPool
+{
+    private final Interp base;
+    private final int maxSize;
+    private final Semaphore permits;
+    // 返されたインタープリタ (最後に返されたものから貸し出す)
+    private final ConcurrentLinkedDeque<Interp> idle
+        = new ConcurrentLinkedDeque<Interp> ();
+    // 貸し出し中のインタープリタ (Interp は equals を再定義しない)
+    private final Set<Interp> lent = ConcurrentHashMap.newKeySet();
+
+    // 統計
+    private final LongAdder borrowCount = new LongAdder ();
+    private final LongAdder borrowNanos = new LongAdder ();
+    private final AtomicLong maxBorrowNanos = new AtomicLong ();
+    private final LongAdder timeoutCount = new LongAdder ();
+    private final LongAdder resetCount = new LongAdder ();
+    private final LongAdder resetNanos = new LongAdder ();
+    private final AtomicLong maxResetNanos = new AtomicLong ();
+    private final LongAdder resetSymbols = new LongAdder ();
+
+    /** 組込み関数と Prelude と追加の関数を読み込んだ新しい
+     * インタープリタを基準として構築する。
+     * @param maxSize 同時に貸し出すインタープリタの数の上限
+     * @param extensions 追加で load する Java で書かれた関数の集合体
+     * @throws IOException Prelude を読めなかった。
+     */
+    public InterpPool (int maxSize, Callable[]... extensions)
+        throws IOException
+    {
+        this (warm(extensions), maxSize);
+    }
+
+    /** 与えられたインタープリタを基準として構築する。
+     * 構築した後，基準のインタープリタを変更しないこと。
+     * @param base 基準のインタープリタ
+     * @param maxSize 同時に貸し出すインタープリタの数の上限
+     * @throws IllegalArgumentException maxSize が正でない。
+     */
+    public InterpPool (Interp base, int maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException ("maxSize " + maxSize);
+        this.base = base;
+        this.maxSize = maxSize;
+        permits = new Semaphore (maxSize, true);
+    }
+
+    private static Interp warm(Callable[][] extensions) throws IOException {
+        Interp interp = new Interp ();
+        LL.loadPrelude(interp);
+        for (Callable[] functions: extensions)
+            interp.load(functions);
+        return interp;
+    }
+
+    /** 基準のインタープリタを返す。*/
+    public Interp getBase() {
+        return base;
+    }
+
+    /** 同時に貸し出すインタープリタの数の上限を返す。*/
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** インタープリタを借りる。上限に達していれば返却を待つ。
+     * @return 基準と同じ状態のインタープリタ
+     * @throws InterruptedException 待っている間に割り込まれた。
+     */
+    public Interp borrow() throws InterruptedException {
+        long t0 = System.nanoTime();
+        permits.acquire();
+        return take(t0);
+    }
+
+    /** インタープリタを借りる。上限に達していれば返却を待つ。
+     * @param timeout 待つ時間の上限
+     * @param unit timeout の単位
+     * @return 基準と同じ状態のインタープリタ，ただし時間切れならば null
+     * @throws InterruptedException 待っている間に割り込まれた。
+     */
+    public Interp borrow(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+        long t0 = System.nanoTime();
+        if (! permits.tryAcquire(timeout, unit)) {
+            timeoutCount.increment();
+            return null;
+        }
+        return take(t0);
+    }
+
+    private Interp take(long t0) {
+        Interp interp = idle.pollFirst();
+        if (interp == null) {
+            try {
+                interp = base.fork();
+            } catch (RuntimeException ex) {
+                permits.release();
+                throw ex;
+            }
+        }
+        lent.add(interp);
+        long t = System.nanoTime() - t0;
+        borrowCount.increment();
+        borrowNanos.add(t);
+        updateMax(maxBorrowNanos, t);
+        return interp;
+    }
+
+    /** 借りたインタープリタを返す。
+     * インタープリタを基準の状態に戻し，次の貸出しに使う。
+     * 返した後，そのインタープリタを使わないこと。
+     * @param interp このプールから借りたインタープリタ
+     * @throws IllegalStateException このプールから借りて，まだ返して
+     *   いないインタープリタでない。
+     */
+    public void release(Interp interp) {
+        if (! lent.remove(interp))
+            throw new IllegalStateException
+                ("not borrowed from this pool: " + interp);
+        long t0 = System.nanoTime();
+        int n;
+        try {
+            n = interp.reset(base);
+        } catch (RuntimeException ex) {
+            permits.release(); // 戻せないものは捨てる。
+            throw ex;
+        }
+        long t = System.nanoTime() - t0;
+        resetCount.increment();
+        resetNanos.add(t);
+        updateMax(maxResetNanos, t);
+        resetSymbols.add(n);
+        idle.addFirst(interp);
+        permits.release();
+    }
+
+    private static void updateMax(AtomicLong max, long t) {
+        long m;
+        while (t > (m = max.get()))
+            if (max.compareAndSet(m, t))
+                return;
+    }
+
+    /** 貸し出した回数 */
+    public long getBorrowCount() {
+        return borrowCount.sum();
+    }
+
+    /** 貸出しにかかった時間 (待ち時間を含む) の合計 [ns] */
+    public long getBorrowNanos() {
+        return borrowNanos.sum();
+    }
+
+    /** 貸出しにかかった時間の最大値 [ns] */
+    public long getMaxBorrowNanos() {
+        return maxBorrowNanos.get();
+    }
+
+    /** 時間切れで貸し出せなかった回数 */
+    public long getTimeoutCount() {
+        return timeoutCount.sum();
+    }
+
+    /** 返されたインタープリタを戻した回数 */
+    public long getResetCount() {
+        return resetCount.sum();
+    }
+
+    /** 戻すのにかかった時間の合計 [ns] */
+    public long getResetNanos() {
+        return resetNanos.sum();
+    }
+
+    /** 戻すのにかかった時間の最大値 [ns] */
+    public long getMaxResetNanos() {
+        return maxResetNanos.get();
+    }
+
+    /** 戻した大域変数の数の合計 */
+    public long getResetSymbols() {
+        return resetSymbols.sum();
+    }
+
+    /** 貸し出し中のインタープリタの数 */
+    public int getActiveCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    @Override public String toString() {
+        long b = getBorrowCount();
+        long r = getResetCount();
+        return String.format
+            ("#<interp-pool:%d/%d borrow:%d avg:%dns max:%dns timeout:%d"
+             + " reset:%d avg:%dns max:%dns symbols:%d>",
+             getActiveCount(), maxSize,
+             b, (b == 0) ? 0 : getBorrowNanos() / b, getMaxBorrowNanos(),
+             getTimeoutCount(),
+             r, (r == 0) ? 0 : getResetNanos() / r, getMaxResetNanos(),
+             getResetSymbols());
+    }
+} // InterpPool
@@ -1,9 +1,11 @@
-// H22.8/17, H30.4/8, H30.4/30 (鈴)
+// H22.8/17, H30.4/8, H30.4/30, R8.10/19 (鈴)
 package l2lisp;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.math.BigInteger;
+import java.lang.reflect.Method;
 
 /** 大域的な定数と関数等の置き場
  */
@@ -30,6 +32,79 @@ public class LL
     /** 静的にマクロ展開する深さ */
     static int MAX_MACRO_EXPS = 30;
 
+    /** これ以上の長さの proper list を詰めた形で作る。
+     * @see Cell#fromArray
+     */
+    static int MIN_COMPACT_LENGTH = 8;
+
+    /** 組込みの遅延リスト関数が一度に作る要素の数
+     * @see LazySeq
+     */
+    static int LAZY_CHUNK_SIZE = 32;
+
+    /** 背景で Lisp の計算をするデーモン・スレッドのプール
+     * @see Prefetch
+     */
+    static final ExecutorService BACKGROUND =
+        Executors.newCachedThreadPool(new ThreadFactory () {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread (r, "l2lisp-background");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // 仮想スレッドを扱うメソッド (Java 21 以降)，または null
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+    private static final Method IS_VIRTUAL;
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        Method isVirtual = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder")
+                .getMethod("unstarted", Runnable.class);
+            isVirtual = Thread.class.getMethod("isVirtual");
+        } catch (ReflectiveOperationException ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+        IS_VIRTUAL = isVirtual;
+    }
+
+    /** スレッドが仮想スレッドか？ Java 21 より前では常に偽 */
+    static boolean isVirtual(Thread t) {
+        if (OF_VIRTUAL == null)
+            return false;
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(t);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+
+    /** 仮想スレッドまたはデーモン・スレッドを作る。
+     * @param r スレッドで実行する中身
+     * @param virtual 真ならば，できれば仮想スレッドにする。
+     * @param name デーモン・スレッドの名前
+     * @return まだ開始していないスレッド
+     */
+    static Thread newThread(Runnable r, boolean virtual, String name) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), r);
+            } catch (ReflectiveOperationException ex) {
+                // 普通のスレッドを使う。
+            }
+        }
+        Thread t = new Thread (r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
     // シンボルの定数
     static final Symbol
         S_APPEND = Symbol.of("append"),
@@ -37,6 +112,7 @@ public class LL
         S_COND = Symbol.Keyword.of("cond"),
         S_CONS = Symbol.of("cons"),
         S_DELAY = Symbol.Keyword.of("delay"),
+        S_DO_SEQ = Symbol.Keyword.of("do-seq"),
         S_ERROR = Symbol.of("*error*"),
         S_LAMBDA = Symbol.Keyword.of("lambda"),
         S_LIST = Symbol.of("list"),
@@ -83,14 +159,16 @@ public class LL
             return "nil";
         } else if (x instanceof Cell) {
             Cell xc = (Cell) x;
-            if (xc.car == S_QUOTE && xc.cdr instanceof Cell) {
-                Cell xcdr = (Cell) xc.cdr;
+            if (xc.car == S_QUOTE && xc.getCdr() instanceof Cell) {
+                Cell xcdr = (Cell) xc.getCdr();
                 if (xcdr.cdr == null)
                     return "'" + str(xcdr.car, printQuote, recLevel, printed);
             }
             return "(" + xc.repr(printQuote, recLevel, printed) + ")";
-        } else if (x instanceof String) {
-            String xs = (String) x;
+        } else if (x instanceof Struct) {
+            return ((Struct) x).repr(printQuote, recLevel, printed);
+        } else if (x instanceof String || x instanceof Rope) {
+            String xs = x.toString();
             if (! printQuote)
                 return xs;
             StringBuilder sb = new StringBuilder ();
@@ -114,6 +192,11 @@ public class LL
             }
             sb.append('"');
             return sb.toString();
+        } else if (x instanceof StringBuilder) {
+            return "#<string-builder:" + ((StringBuilder) x).length() + ">";
+        } else if (x instanceof Channel || x instanceof Generator ||
+                   x instanceof Actor) {
+            return x.toString(); // 要素をたどると値を取り出してしまう
         } else {
             if (x instanceof Object[]) // 参照型の配列ならば…
                 x = Arrays.asList((Object[]) x);
@@ -161,7 +244,10 @@ public class LL
      * @return 引数と同じ要素を同じ順に並べた Lisp のリスト
      */
     public static Cell list(Object... args) {
-        return mapcar(Arrays.asList(args), null);
+        // 短いリストは配列を保持しないから複製しなくてよい。
+        if (args.length >= MIN_COMPACT_LENGTH)
+            args = args.clone();
+        return Cell.fromArray(args);
     }
 
     /** list 引数の各要素に fn 引数を適用した Lisp のリストを作る。
@@ -173,19 +259,13 @@ public class LL
     public static Cell mapcar(Iterable list, IUnary fn) {
         if (list == null)
             return null;
-        Cell z = null;
-        Cell y = null;
+        ArrayList<Object> a = new ArrayList<Object> ();
         for (Object e: list) {
             if (fn != null)
                 e = fn.apply(e);
-            Cell x = new Cell (e, null);
-            if (z == null)
-                z = x;
-            else
-                y.cdr = x;
-            y = x;
+            a.add(e);
         }
-        return z;
+        return Cell.fromArray(a.toArray());
     }
 
     /** Java による１引数関数のためのインタフェース
@@ -207,6 +287,18 @@ public class LL
     }
 
 
+    /** 組込み関数と PRELUDE をインタープリタに読み込む。
+     * @param interp 作ったばかりのインタープリタ
+     * @throws IOException PRELUDE を読めなかった。
+     */
+    static void loadPrelude(IInterp interp) throws IOException {
+        interp.load(BuiltInFunctions.FUNCTIONS);
+        IInput prelude = new LinesFromInputStream
+            (LL.class.getResourceAsStream(PRELUDE));
+        interp.run(prelude, null);
+    }
+
+
     /** 単独の Lisp インタープリタとしての主プログラムのサンプル実装.
      * IInterp インタフェース実装クラス Intep の外部では，本メソッドだけが
      * Interp に依存する。その処理は次のとおりである。
@@ -220,16 +312,51 @@ public class LL
      *     interp.run する。ただし，コマンド行引数がないか "_" ならば，
      *     対話セッションとして interp.run する。
      * </ol>
+     * ただし最初のコマンド行引数が次のものならば動作を変える。
+     * <ul>
+     * <li> --server [-p port] [-j n]: 暖まったインタープリタを n 個
+     *      (既定では CPU 数と 4 の大きい方) プールに持つサーバとして，
+     *      ループバック・アドレスの port で接続を待つ。
+     * <li> --client [-p port] [file...]: ファイル (既定では標準入力) の
+     *      中身をサーバに送り，その出力と終了状態を受け取る。
+     * <li> --batch [-j n] file...: 各ファイルを別々のインタープリタで
+     *      n 個 (既定では CPU 数) のスレッドを使って並列に評価し，
+     *      ファイルごとの終了状態と所要時間を報告する。
+     * </ul>
      * @param args Lisp プログラムのファイル名または "-" からなる並び
      * @throws Exception 対話セッション中の EvalException 以外の未捕獲例外
+     * @see Server
+     * @see Batch
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("--server") ||
+                                args[0].equals("--client") ||
+                                args[0].equals("--batch"))) {
+            int port = Server.DEFAULT_PORT;
+            int cpus = Runtime.getRuntime().availableProcessors();
+            int jobs = args[0].equals("--batch") ? cpus : Math.max(4, cpus);
+            ArrayList<String> files = new ArrayList<String> ();
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].equals("-p") && i + 1 < args.length)
+                    port = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-j") && i + 1 < args.length)
+                    jobs = Integer.parseInt(args[++i]);
+                else
+                    files.add(args[i]);
+            }
+            if (args[0].equals("--server")) {
+                Server.serve(port, jobs);
+            } else if (args[0].equals("--batch")) {
+                System.exit(Batch.run(files.toArray(new String[0]), jobs));
+            } else {
+                if (files.isEmpty())
+                    files.add("-");
+                System.exit(Server.client(port, files.toArray(new String[0])));
+            }
+            return;
+        }
         IInterp interp = new Interp ();
-        interp.load(BuiltInFunctions.FUNCTIONS);
-
-        IInput prelude = new LinesFromInputStream
-            (LL.class.getResourceAsStream(PRELUDE));
-        interp.run(prelude, null);
+        loadPrelude(interp);
 
         for (String fname: ((args.length == 0) ? new String[] {"-"} : args)) {
             IInput input;
@@ -0,0 +1,365 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.math.BigInteger;
+
+/** チャンク化された遅延リスト.
+ * range, map, filter, scanl, zipWith, _zip の実装。
+ * 一度に LL.LAZY_CHUNK_SIZE 個までの要素を Java で作り，
+ * 普通のセルとして並べる。最後のセルの cdr は残りを作る約束とする。
+ * だから結果は Prelude の遅延リストと同じく暗黙に force される。
+ * <p>
+ * 入力の列が，いま果たしている最中の約束や，作りかけのこの出力自身に
+ * 行き当たったら，そこでチャンクを打ち切る。
+ * これにより fibs のように自分自身を参照する列も作れる。
+ */
+final class LazySeq
+{
+    /** このクラスはインスタンスを作らない。*/
+    private LazySeq () {}
+
+    /** filter が一つのチャンクのために調べる入力の要素数の上限.
+     * 条件を満たす要素がまれでも，入力の先頭を長く保持しないようにする。
+     */
+    static final int MAX_SCAN = LL.LAZY_CHUNK_SIZE * 32;
+
+    /** 入力をこれ以上進められないことを表す値 */
+    private static final Object STOP = new Object ();
+
+    /** (range m n) の実装 */
+    static Object range(Number m, Number n) {
+        return new Range (m, n).force(null);
+    }
+
+    /** (map f x) の実装 */
+    static Object map(Function f, Object x, IInterp interp) {
+        return new Map (f, x, interp).force(null);
+    }
+
+    /** (filter f x) の実装 */
+    static Object filter(Function f, Object x, IInterp interp) {
+        return new Filter (f, x, interp).force(null);
+    }
+
+    /** (scanl f q x) の実装 */
+    static Object scanl(Function f, Object q, Object x, IInterp interp) {
+        return new Scanl (f, q, x, interp).force(null);
+    }
+
+    /** (zipWith f x y) の実装 */
+    static Object zipWith(Function f, Object x, Object y, IInterp interp) {
+        return new ZipWith (f, x, y, interp).force(null);
+    }
+
+    /** (_zip lists) の実装 */
+    static Object zip(Cell lists) {
+        int n = 0;
+        for (Object e: lists)
+            n++;
+        Object[] xs = new Object[n];
+        int i = 0;
+        for (Object e: lists)
+            xs[i++] = e;
+        return new Zip (xs).force(null);
+    }
+
+
+    /** 入力のセル cell の cdr から先を表す値 */
+    private static final class After
+    {
+        final Cell cell;
+
+        After (Cell cell) {
+            this.cell = cell;
+        }
+    } // After
+
+    /** 一つのチャンクを作る過程 */
+    private static final class Builder
+    {
+        private final Promise self; // 果たそうとしている約束，または null
+        private Cell head = null;
+        private Cell tail = null;
+        private int count = 0;
+
+        Builder (Promise self) {
+            this.self = self;
+        }
+
+        /** 出力がチャンクの大きさに達したか？ */
+        boolean isFull() {
+            return count >= LL.LAZY_CHUNK_SIZE;
+        }
+
+        /** 出力に要素を一つ加える。*/
+        void add(Object e) {
+            Cell c = new Cell (e, null);
+            if (head == null)
+                head = c;
+            else
+                tail.cdr = c;
+            tail = c;
+            count++;
+        }
+
+        /** 入力のリストの値を Cell か null にする。
+         * 必要ならば約束を果たす。ただし出力が一つでもあるならば，
+         * 果たしている最中の約束にはそこで止まり STOP を返す。
+         * 自分自身の約束は，作りかけの出力とみなす。
+         */
+        Object list(Object x) {
+            for (;;) {
+                if (x instanceof After) {
+                    Cell c = ((After) x).cell;
+                    if (c == tail && c != null)
+                        return STOP;
+                    x = c.getCdr();
+                } else if (x instanceof Promise) {
+                    Promise p = (Promise) x;
+                    Object v = p.value();
+                    if (v != p)
+                        x = v;
+                    else if (p == self && head != null)
+                        x = head;
+                    else if (p.isDelivering() && head != null)
+                        return STOP;
+                    else
+                        x = p.deliver();
+                } else if (x == null || x instanceof Cell) {
+                    return x;
+                } else {
+                    throw new EvalException ("list expected", x);
+                }
+            }
+        }
+
+        /** 入力のセル c の次のセルか null か STOP を返す。*/
+        Object rest(Cell c) {
+            return list(new After (c));
+        }
+
+        /** 出力を終える。
+         * @param next 残りを作る中身，ただし残りがなければ null
+         * @return 出力のリスト
+         */
+        Object finish(Promise.Thunk next) {
+            Object rest = (next == null) ? null : new Promise (next);
+            if (head == null)
+                return rest;
+            tail.cdr = rest;
+            return head;
+        }
+    } // Builder
+
+    // 入力 x が STOP で止まったならば，セル c の後から続ける値を返す。
+    private static Object resume(Object x, Cell c) {
+        return (x == STOP) ? new After (c) : x;
+    }
+
+    private static Object call(Function f, IInterp interp, Object... args) {
+        return f.apply(LL.list(args), interp, null);
+    }
+
+
+    /** range の中身 */
+    private static final class Range extends Promise.Thunk
+    {
+        private final Number m;
+        private final Number n;
+
+        Range (Number m, Number n) {
+            this.m = m;
+            this.n = n;
+        }
+
+        Object force(Promise self) {
+            Builder b = new Builder (self);
+            Number i = m;
+            while (BuiltInFunctions.compare(i, n) < 0) {
+                if (b.isFull())
+                    return b.finish(new Range (i, n));
+                b.add(i);
+                if (i instanceof Integer)
+                    i = BuiltInFunctions.reg(i.longValue() + 1);
+                else if (i instanceof Double)
+                    i = i.doubleValue() + 1;
+                else
+                    i = BuiltInFunctions.reg(((BigInteger) i)
+                                             .add(BigInteger.ONE));
+            }
+            return b.finish(null);
+        }
+    } // Range
+
+    /** map の中身 */
+    private static final class Map extends Promise.Thunk
+    {
+        private final Function f;
+        private final Object x;
+        private final IInterp interp;
+
+        Map (Function f, Object x, IInterp interp) {
+            this.f = f;
+            this.x = x;
+            this.interp = interp;
+        }
+
+        Object force(Promise self) {
+            Builder b = new Builder (self);
+            Object j = b.list(x);
+            while (j instanceof Cell) {
+                if (b.isFull())
+                    return b.finish(new Map (f, j, interp));
+                Cell c = (Cell) j;
+                b.add(call(f, interp, c.car));
+                j = b.rest(c);
+                if (j == STOP)
+                    return b.finish(new Map (f, new After (c), interp));
+            }
+            return b.finish(null);
+        }
+    } // Map
+
+    /** filter の中身 */
+    private static final class Filter extends Promise.Thunk
+    {
+        private final Function f;
+        private final Object x;
+        private final IInterp interp;
+
+        Filter (Function f, Object x, IInterp interp) {
+            this.f = f;
+            this.x = x;
+            this.interp = interp;
+        }
+
+        Object force(Promise self) {
+            Builder b = new Builder (self);
+            Object j = b.list(x);
+            int scanned = 0;
+            while (j instanceof Cell) {
+                if (b.isFull() || scanned++ >= MAX_SCAN)
+                    return b.finish(new Filter (f, j, interp));
+                Cell c = (Cell) j;
+                if (LL.force(call(f, interp, c.car)) != null)
+                    b.add(c.car);
+                j = b.rest(c);
+                if (j == STOP)
+                    return b.finish(new Filter (f, new After (c), interp));
+            }
+            return b.finish(null);
+        }
+    } // Filter
+
+    /** scanl の中身 */
+    private static final class Scanl extends Promise.Thunk
+    {
+        private final Function f;
+        private final Object q;
+        private final Object x;
+        private final IInterp interp;
+
+        Scanl (Function f, Object q, Object x, IInterp interp) {
+            this.f = f;
+            this.q = q;
+            this.x = x;
+            this.interp = interp;
+        }
+
+        Object force(Promise self) {
+            Builder b = new Builder (self);
+            Object acc = q;
+            Object j = b.list(x);
+            for (;;) {
+                b.add(acc);
+                if (! (j instanceof Cell))
+                    return b.finish(null);
+                Cell c = (Cell) j;
+                acc = call(f, interp, acc, c.car);
+                j = b.rest(c);
+                if (j == STOP)
+                    return b.finish(new Scanl (f, acc, new After (c),
+                                               interp));
+                if (b.isFull())
+                    return b.finish(new Scanl (f, acc, j, interp));
+            }
+        }
+    } // Scanl
+
+    /** zipWith の中身 */
+    private static final class ZipWith extends Promise.Thunk
+    {
+        private final Function f;
+        private final Object x;
+        private final Object y;
+        private final IInterp interp;
+
+        ZipWith (Function f, Object x, Object y, IInterp interp) {
+            this.f = f;
+            this.x = x;
+            this.y = y;
+            this.interp = interp;
+        }
+
+        Object force(Promise self) {
+            Builder b = new Builder (self);
+            Object i = b.list(x);
+            Object j = b.list(y);
+            while (i instanceof Cell && j instanceof Cell) {
+                if (b.isFull())
+                    return b.finish(new ZipWith (f, i, j, interp));
+                Cell c = (Cell) i;
+                Cell d = (Cell) j;
+                b.add(call(f, interp, c.car, d.car));
+                i = b.rest(c);
+                j = b.rest(d);
+                if (i == STOP || j == STOP)
+                    return b.finish(new ZipWith (f, resume(i, c),
+                                                 resume(j, d), interp));
+            }
+            return b.finish(null);
+        }
+    } // ZipWith
+
+    /** _zip の中身 */
+    private static final class Zip extends Promise.Thunk
+    {
+        private final Object[] xs;
+
+        Zip (Object[] xs) {
+            this.xs = xs;
+        }
+
+        Object force(Promise self) {
+            Builder b = new Builder (self);
+            int n = xs.length;
+            Object[] js = new Object[n];
+            for (int k = 0; k < n; k++)
+                js[k] = b.list(xs[k]);
+            Cell[] cs = new Cell[n];
+            for (;;) {
+                for (int k = 0; k < n; k++)
+                    if (! (js[k] instanceof Cell))
+                        return b.finish(null);
+                if (b.isFull())
+                    return b.finish(new Zip (js));
+                Object[] cars = new Object[n];
+                for (int k = 0; k < n; k++) {
+                    cs[k] = (Cell) js[k];
+                    cars[k] = cs[k].car;
+                }
+                b.add(LL.list(cars));
+                boolean stopped = false;
+                for (int k = 0; k < n; k++) {
+                    js[k] = b.rest(cs[k]);
+                    stopped |= (js[k] == STOP);
+                }
+                if (stopped) {
+                    for (int k = 0; k < n; k++)
+                        js[k] = resume(js[k], cs[k]);
+                    return b.finish(new Zip (js));
+                }
+            }
+        }
+    } // Zip
+} // LazySeq
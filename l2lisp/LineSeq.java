@@ -0,0 +1,137 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.io.*;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** テキストの行の遅延リスト.
+ * file-lines と stdin-lines の実装。ファイルのチャネルまたは標準入力を
+ * バッファ付きで UTF-8 として読み，force されるたびに LL.LAZY_CHUNK_SIZE 行ずつ
+ * 文字列のリストにする。読み終えた部分は，どこからも参照されなければ
+ * 回収されるから，ヒープより大きなファイルも一定のメモリで処理できる。
+ * <p>
+ * ファイルは最後まで読んだときに閉じる。途中でリストが捨てられたときは，
+ * それが回収された後に背景のスレッドが閉じる。
+ */
+final class LineSeq extends Promise.Thunk
+{
+    private final BufferedReader reader;
+    private final boolean closeAtEnd; // 最後まで読んだら閉じるか？
+    private boolean closed = false;
+
+    private LineSeq (BufferedReader reader, boolean closeAtEnd) {
+        this.reader = reader;
+        this.closeAtEnd = closeAtEnd;
+    }
+
+    /** (file-lines name) の実装
+     * @param fileName ファイル名
+     * @return ファイルの各行 (行末を除く) の遅延リスト
+     * @throws IOException ファイルを開けなかった。
+     */
+    static Object file(String fileName) throws IOException {
+        FileChannel ch = FileChannel.open(Paths.get(fileName),
+                                          StandardOpenOption.READ);
+        BufferedReader br = new BufferedReader
+            (Channels.newReader(ch, StandardCharsets.UTF_8.newDecoder(), -1));
+        LineSeq s = new LineSeq (br, true);
+        Closer.register(s, br);
+        return new Promise (s);
+    }
+
+    private static LineSeq stdin = null;
+
+    /** (stdin-lines) の実装
+     * 標準入力は対話セッションと共有の読み取り器で読む
+     * (LinesFromConsole.stdin 参照)。標準入力は閉じない。
+     * @return 標準入力の残りの各行の遅延リスト
+     */
+    static synchronized Object stdin() {
+        if (stdin == null)
+            stdin = new LineSeq (LinesFromConsole.stdin(), false);
+        return new Promise (stdin);
+    }
+
+    Object force(Promise self) {
+        synchronized (reader) {
+            Cell head = null;
+            Cell tail = null;
+            int count = 0;
+            String line = null;
+            try {
+                while (count < LL.LAZY_CHUNK_SIZE && ! closed &&
+                       (line = reader.readLine()) != null) {
+                    Cell c = new Cell (line, null);
+                    if (head == null)
+                        head = c;
+                    else
+                        tail.cdr = c;
+                    tail = c;
+                    count++;
+                    if (! closeAtEnd && ! reader.ready())
+                        break;  // 標準入力は届いている行だけで区切る。
+                }
+                if (line == null && closeAtEnd && ! closed) {
+                    closed = true;
+                    reader.close();
+                }
+            } catch (IOException ex) {
+                throw new EvalException ("line read failed", ex);
+            }
+            Object rest = (line == null || closed) ?
+                null : new Promise (this);
+            if (head == null)
+                return rest;
+            tail.cdr = rest;
+            return head;
+        }
+    }
+
+
+    /** 捨てられた行の遅延リストのファイルを閉じる幻参照 */
+    private static final class Closer extends PhantomReference<LineSeq>
+    {
+        private static final ReferenceQueue<LineSeq> QUEUE
+            = new ReferenceQueue<LineSeq> ();
+        // 回収されるまで Closer 自身を保持する。
+        private static final Set<Closer> PENDING
+            = Collections.synchronizedSet(new HashSet<Closer> ());
+        private static boolean started = false;
+
+        private final Closeable file;
+
+        private Closer (LineSeq s, Closeable file) {
+            super (s, QUEUE);
+            this.file = file;
+        }
+
+        static synchronized void register(LineSeq s, Closeable file) {
+            PENDING.add(new Closer (s, file));
+            if (! started) {
+                started = true;
+                LL.BACKGROUND.execute(new Runnable () {
+                        public void run() {
+                            for (;;) {
+                                try {
+                                    Closer c = (Closer) QUEUE.remove();
+                                    PENDING.remove(c);
+                                    c.file.close();
+                                } catch (InterruptedException ex) {
+                                    return;
+                                } catch (IOException ex) {
+                                    // 閉じられなくても続ける。
+                                }
+                            }
+                        }
+                    });
+            }
+        }
+    } // Closer
+} // LineSeq
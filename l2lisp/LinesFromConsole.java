@@ -1,11 +1,13 @@
-// H22.8/11 (鈴)
+// H22.8/11, R8.10/19 (鈴)
 package l2lisp;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 
 /** コンソールでの対話的入力のための IInput 実装クラス.
  * Java 1.5 に対応するため，java.io.Console は使わず，
  * System.in と System.out (プロンプト表示) で代用する。
+ * System.in は stdin-lines と共有する一つの読み取り器 (UTF-8) で読む。
  */
 public class LinesFromConsole implements IInput
 {
@@ -15,13 +17,26 @@ public class LinesFromConsole implements IInput
     private final String farewell;
     private boolean isOpen = true;
 
+    private static BufferedReader stdin = null;
+
+    /** System.in の共有の読み取り器を返す。
+     * 対話セッションと stdin-lines が同じバッファから読むように，
+     * 読み取り器は一つだけ作る。
+     */
+    static synchronized BufferedReader stdin() {
+        if (stdin == null)
+            stdin = new BufferedReader
+                (new InputStreamReader (System.in, StandardCharsets.UTF_8));
+        return stdin;
+    }
+
     /** System.in から構築する。
      * @param ps1 １次プロンプト
      * @param ps2 ２次プロンプト
      * @param farewell わかれのあいさつ または null
      */
     public LinesFromConsole (String ps1, String ps2, String farewell) {
-        br = new BufferedReader (new InputStreamReader (System.in));
+        br = stdin();
         this.ps1 = ps1;
         this.ps2 = ps2;
         this.farewell = farewell;
@@ -0,0 +1,58 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/** アトム, つまり複数のスレッドから CAS で更新できる値の入れ物.
+ * ロックを使わないから，待たされるスレッドはない。
+ * 値の比較は eql による。
+ */
+public final class LispAtom
+{
+    private final AtomicReference<Object> ref;
+
+    /**
+     * @param x 最初の値
+     */
+    public LispAtom (Object x) {
+        ref = new AtomicReference<Object> (x);
+    }
+
+    /** 現在の値を返す。*/
+    public Object get() {
+        return ref.get();
+    }
+
+    /** 現在の値が expected に eql ならば x に置き換える。
+     * @return 置き換えたか？
+     */
+    public boolean compareAndSet(Object expected, Object x) {
+        for (;;) {
+            Object current = ref.get();
+            if (! BuiltInFunctions.eql(current, expected))
+                return false;
+            if (ref.compareAndSet(current, x))
+                return true;
+        }
+    }
+
+    /** (atom-swap! a fn args...) の実装。
+     * 現在の値 v から (fn v args...) を計算し，その間に値が
+     * 変わっていなければ置き換える。変わっていればやり直す。
+     * だから fn は何度呼ばれてもよい関数であること。
+     * @return 新しい値
+     */
+    Object swap(Function fn, Cell args, IInterp interp, Cell env) {
+        for (;;) {
+            Object current = ref.get();
+            Object x = LL.force(fn.apply(new Cell (current, args),
+                                         interp, env));
+            if (ref.compareAndSet(current, x))
+                return x;
+        }
+    }
+
+    @Override public String toString() {
+        return "#<atom:" + LL.str(ref.get()) + ">";
+    }
+} // LispAtom
@@ -0,0 +1,91 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** 先物, つまり Lisp 式 (future exp) の評価結果.
+ * 式は別のスレッドで評価し始められ，その値は約束として返される。
+ * だから値は delay と同じく暗黙に force され，force するスレッドは
+ * 評価が終わるまで待つ。評価中に起きた例外 (throw を含む) は，
+ * force したスレッドで改めて送出されるから，catch や *error* で
+ * そのまま捕捉できる。
+ * <p>
+ * 式を評価するスレッドは，既定では Java 21 以降ならば仮想スレッド，
+ * さもなくば LL.BACKGROUND のデーモン・スレッドである。
+ * setExecutor で ForkJoinPool 等に替えられる。
+ */
+public final class LispFuture
+{
+    /** このクラスはインスタンスを作らない。*/
+    private LispFuture () {}
+
+    private static volatile ExecutorService executor = defaultExecutor();
+
+    // 仮想スレッドを一つずつ使う実行器，ただしなければ LL.BACKGROUND
+    private static ExecutorService defaultExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return LL.BACKGROUND;
+        }
+    }
+
+    /** 先物の式を評価する実行器を返す。*/
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /** 以後の先物の式を評価する実行器を設定する。
+     * 実行中の先物には影響しない。
+     * @param e 実行器，ただし null ならば既定の実行器
+     */
+    public static void setExecutor(ExecutorService e) {
+        executor = (e == null) ? defaultExecutor() : e;
+    }
+
+    /** (_future fn) の実装
+     * @param fn 引数のない関数
+     * @param interp 関数を実行する Lisp インタープリタ
+     * @return 関数の値を果たす約束
+     */
+    static Object of(final Function fn, final IInterp interp) {
+        Future<Object> f = executor.submit
+            (new java.util.concurrent.Callable<Object> () {
+                public Object call() {
+                    return fn.apply(null, interp, null);
+                }
+            });
+        return new Promise (new Touch (f));
+    }
+
+
+    /** 先物の評価の終わりを待つ約束の中身 */
+    private static final class Touch extends Promise.Thunk
+    {
+        private final Future<Object> f;
+
+        Touch (Future<Object> f) {
+            this.f = f;
+        }
+
+        Object force(Promise self) {
+            try {
+                return f.get();
+            } catch (InterruptedException ex) {
+                throw new EvalException ("interrupted");
+            } catch (ExecutionException ex) {
+                Throwable e = ex.getCause();
+                if (e instanceof RuntimeException)
+                    throw (RuntimeException) e;
+                else if (e instanceof Error)
+                    throw (Error) e;
+                else
+                    throw new EvalException ("future failed", (Exception) e);
+            }
+        }
+    } // Touch
+} // LispFuture
@@ -1,4 +1,4 @@
-// H22.8/17, H30.4/8, H30.4/30 (鈴)
+// H22.8/17, H30.4/8, H30.4/30, R8.10/19 (鈴)
 package l2lisp;
 
 import java.io.*;
@@ -11,6 +11,7 @@ public class LispReader implements Closeable
 {
     private final Lexer lex;
     private boolean erred = false;
+    private HashConsTable hashCons = null;
 
     /** 与えられた引数から次々と Lisp 式を読み取るように構築する。
      * @param lines Lisp 式の読み取り先となる入力ストリーム
@@ -19,6 +20,16 @@ public class LispReader implements Closeable
         lex = new Lexer (lines);
     }
 
+    /** 与えられた読み取り器と同じ入力から読み取るように構築する。
+     * ハッシュ・コンシングの表はその時点のものを引き継ぐが，
+     * その後の設定は互いに独立である。Interp.fork が使う。
+     * @param r 入力を共有する読み取り器
+     */
+    LispReader (LispReader r) {
+        lex = r.lex;
+        hashCons = r.hashCons;
+    }
+
     /** Closeable のメソッドの実装。
      * コンストラクタの引数の close() メソッドを呼び出す。
      */
@@ -26,6 +37,22 @@ public class LispReader implements Closeable
         lex.close();
     }
 
+    /** ハッシュ・コンシングに使う表を設定する。
+     * 表があれば，読み取ったセル，文字列，Double 値をその表で正準化する。
+     * このとき長いリストも詰めた形にはしない。
+     * @param table 正準化の表，または null (ハッシュ・コンシングしない)
+     */
+    public void setHashConsTable(HashConsTable table) {
+        hashCons = table;
+    }
+
+    /** ハッシュ・コンシングに使う表を得る。
+     * @return 正準化の表，または null
+     */
+    public HashConsTable getHashConsTable() {
+        return hashCons;
+    }
+
     /** １個の Lisp 式を読む。
      * 行が尽きたら LL.EOF をいつまでも返す。
      * @return 読み取った Lisp 式，または LL.EOF
@@ -66,10 +93,10 @@ public class LispReader implements Closeable
             return parseListBody();
         } else if (token == Token.QUOTE) {
             lex.next();
-            return LL.list(LL.S_QUOTE, parseExpression());
+            return cons(LL.S_QUOTE, cons(parseExpression(), null));
         } else if (token == Token.TILDE) {
             lex.next();
-            return LL.list(LL.S_DELAY, parseExpression());
+            return cons(LL.S_DELAY, cons(parseExpression(), null));
         } else if (token == Token.BQUOTE) {
             lex.next();
             return QQ.expand(parseExpression());
@@ -82,31 +109,47 @@ public class LispReader implements Closeable
         } else if (token == Token.LBRACKET) {
             lex.next();
             return parseVectorBody();
+        } else if (hashCons != null) {
+            return hashCons.intern(token);
         } else {
             return token;
         }
     }
 
+    // ハッシュ・コンシングするならば正準なセルを作る。
+    private Cell cons(Object car, Object cdr) {
+        if (hashCons != null)
+            return hashCons.cons(car, cdr);
+        else
+            return new Cell (car, cdr);
+    }
+
+    // 長いリストでスタックを消費しないように，要素を順に集めてから
+    // リストを作る。ハッシュ・コンシングしないならば，proper list は
+    // Cell.fromArray で作る。
     private Object parseListBody() throws IOException, SyntaxException {
-        if (lex.current() == Token.RPAREN) {
-            return null;
-        } else {
-            Object e1 = parseExpression();
+        ArrayList<Object> a = new ArrayList<Object> ();
+        while (lex.current() != Token.RPAREN) {
+            a.add(parseExpression());
             lex.next();
-            Object e2;
-            if (lex.current() == Token.DOT) {
+            if (lex.current() == Token.DOT && ! a.isEmpty()) {
                 lex.next();
-                e2 = parseExpression();
+                Object z = parseExpression();
                 lex.next();
                 if (lex.current() != Token.RPAREN)
                     throw new SyntaxException ("\")\" expected: "
                                                + lex.current());
-
-            } else {
-                e2 = parseListBody();
+                for (int i = a.size() - 1; i >= 0; i--)
+                    z = cons(a.get(i), z);
+                return z;
             }
-            return new Cell (e1, e2);
         }
+        if (hashCons == null)
+            return Cell.fromArray(a.toArray());
+        Object z = null;
+        for (int i = a.size() - 1; i >= 0; i--)
+            z = cons(a.get(i), z);
+        return z;
     }
 
     private Object[] parseVectorBody() throws IOException, SyntaxException {
@@ -153,7 +196,7 @@ public class LispReader implements Closeable
         static Object expand(Object x) {
             if (x instanceof Cell) {
                 Cell t = expand1(x);
-                if ((t.car instanceof Cell) && (t.cdr == null)) {
+                if ((t.car instanceof Cell) && (t.getCdr() == null)) {
                     Cell k = (Cell) t.car;
                     if (k.car == LL.S_LIST || k.car == LL.S_CONS)
                         return k;
@@ -182,10 +225,10 @@ public class LispReader implements Closeable
             if (x instanceof Cell) {
                 Cell xc = (Cell) x;
                 Object h = expand2(xc.car);
-                Object t = expand1(xc.cdr);
+                Object t = expand1(xc.getCdr());
                 if (t instanceof Cell) {
                     Cell tc = (Cell) t;
-                    if (tc.car == null && tc.cdr == null) {
+                    if (tc.car == null && tc.getCdr() == null) {
                         return LL.list(h);
                     } else if (h instanceof Cell) {
                         Cell hc = (Cell) h;
@@ -193,13 +236,14 @@ public class LispReader implements Closeable
                             if (tc.car instanceof Cell) {
                                 Cell tcar = (Cell) tc.car;
                                 if (tcar.car == LL.S_LIST) {
-                                    Object hh = concat(hc, tcar.cdr);
-                                    return new Cell (hh, tc.cdr);
+                                    Object hh = concat(hc, tcar.getCdr());
+                                    return new Cell (hh, tc.getCdr());
                                 }
                             }
-                            if (hc.cdr instanceof Cell) {
-                                Object hh = consCons((Cell) hc.cdr, tc.car);
-                                return new Cell (hh, tc.cdr);
+                            if (hc.getCdr() instanceof Cell) {
+                                Object hh = consCons((Cell) hc.getCdr(),
+                                                     tc.car);
+                                return new Cell (hh, tc.getCdr());
                             }
                         }
                     }
@@ -217,7 +261,7 @@ public class LispReader implements Closeable
             if (x == null)
                 return y;
             else
-                return new Cell (x.car, concat((Cell) x.cdr, y));
+                return new Cell (x.car, concat(x.getCdrCell(), y));
         }
 
         // consCons(LL.list(1, 2, 3), "a") => (cons 1 (cons 2 (cons 3 "a")))
@@ -225,7 +269,8 @@ public class LispReader implements Closeable
             if (x == null)
                 return y;
             else
-                return LL.list(LL.S_CONS, x.car, consCons((Cell) x.cdr, y));
+                return LL.list(LL.S_CONS, x.car,
+                               consCons(x.getCdrCell(), y));
         }
 
         // `x の x.car を append の１引数として使えるように展開する。
@@ -346,11 +391,7 @@ public class LispReader implements Closeable
                     } else if (tk.startsWith(":")) { // :ではじまるkeyword？
                         String tail = tk.substring(1);
                         if (checkSymbol(tail))
-                            try {
-                                return Symbol.Keyword.of(tk);
-                            } catch (IllegalArgumentException ex) {
-                                return Symbol.of(tk);
-                            }
+                            return Symbol.keyword(tk);
                     } else if (checkSymbol(tk)) { // シンボル？
                         return Symbol.of(tk);
                     }
@@ -536,6 +577,14 @@ public class LispReader implements Closeable
      * 失敗時は null を返す。
      */
     private static Number tryToParseAsNumber(String s) {
+        // 明らかに数でない字句は，例外を三度作らずに済ませる。
+        int i = (s.startsWith("-") || s.startsWith("+")) ? 1 : 0;
+        if (i >= s.length())
+            return null;
+        char c = s.charAt(i);
+        if (! (('0' <= c && c <= '9') || c == '.' || c == '#' ||
+               c == 'I' || c == 'N')) // Infinity と NaN
+            return null;
         boolean isNegative = false;
         if (s.startsWith("-")) {
             isNegative = true;
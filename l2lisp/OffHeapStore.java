@@ -0,0 +1,322 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Java ヒープの外に置く読み出し専用の cons 空間.
+ * 一度読み込んでからは参照するだけの大きなデータを，ダイレクト・バッファ
+ * を連ねた領域に 8 バイトの語の並びとして格納する。
+ * 各語の下位 3 ビットは型を，残りは値または語の番地を表す。
+ * セルは car と cdr の 2 語からなる。
+ * <p>
+ * データは Cell の派生クラスであるビューを通して普通のリストとして見える。
+ * ビューの cdr のセルは取り出されたときに作られ，弱参照でだけ
+ * 覚えられるから，たどり終えたセルは回収される。
+ * 番地ごとのビューは弱参照の表で覚え，参照が残っている間は
+ * どこから取り出しても同じビューとする。
+ * 書き換えたビューはヒープ上に固定され，以後その番地のセルとして使われる。
+ * ビューは複数のスレッドから読んでよいが，copy と load は
+ * 読む前に一つのスレッドで済ませること。
+ */
+public final class OffHeapStore
+{
+    /** 一つのバッファの語数 (1 MiB) */
+    static final int CHUNK_WORDS = 1 << 17;
+
+    // 語の型
+    private static final int NIL = 0;
+    private static final int INT = 1;
+    private static final int CELL = 2;
+    private static final int STRING = 3;
+    private static final int DOUBLE = 4;
+    private static final int OBJECT = 5;
+
+    private final ArrayList<LongBuffer> chunks = new ArrayList<LongBuffer> ();
+    private long top = 0;       // 次に割り当てる語の番地
+    private long cells = 0;     // 格納したセルの数
+    // 語として表せない値 (シンボル，BigInteger，ベクトル等) はヒープに置く。
+    private final ArrayList<Object> objects = new ArrayList<Object> ();
+    private final IdentityHashMap<Object, Integer> objectIndex
+        = new IdentityHashMap<Object, Integer> ();
+    // 書き換えられたビュー (番地から)
+    private final ConcurrentHashMap<Long, View> pinned
+        = new ConcurrentHashMap<Long, View> ();
+    // 今あるビュー (番地から)
+    private final ConcurrentHashMap<Long, ViewRef> views
+        = new ConcurrentHashMap<Long, ViewRef> ();
+    private final ReferenceQueue<View> queue = new ReferenceQueue<View> ();
+
+    /** Lisp 値を格納し，そのビューを返す。
+     * 値は循環していないこと。約束はかなえてから格納する。
+     * @param x 任意の Lisp 値
+     * @return x がリストならばそのビュー，さもなくば x に等しい値
+     */
+    public Object copy(Object x) {
+        return decode(put(x));
+    }
+
+    /** 読み取り器から EOF まで式を読んで格納し，そのリストのビューを返す。
+     * 一度に Java ヒープに置くのは読み取った一つの式だけである。
+     * @param lr 読み取り器
+     * @return 読み取った式を並べたリストのビュー，ただし空ならば nil
+     * @throws IOException 読み取り時に発生した例外
+     */
+    public Object load(LispReader lr) throws IOException {
+        long first = NIL;
+        long prev = -1;
+        for (;;) {
+            Object x = lr.read();
+            if (x == LL.EOF)
+                break;
+            long a = allocateCell();
+            if (prev < 0)
+                first = word(CELL, a);
+            else
+                set(prev + 1, word(CELL, a));
+            set(a, put(x));
+            prev = a;
+        }
+        if (prev >= 0)
+            set(prev + 1, NIL);
+        return decode(first);
+    }
+
+    /** バッファの個数を返す。*/
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    /** 使用したバイト数を返す。*/
+    public long getUsedBytes() {
+        return top * 8;
+    }
+
+    /** 格納したセルの数を返す。*/
+    public long getCellCount() {
+        return cells;
+    }
+
+    /** ヒープに置いた値の数を返す。*/
+    public int getObjectCount() {
+        return objects.size();
+    }
+
+    /** 値がビューならば，そのビューの格納先を返す。
+     * @param x 任意の Lisp 値
+     * @return 格納先，ただし x がビューでなければ null
+     */
+    public static OffHeapStore storeOf(Object x) {
+        return (x instanceof View) ? ((View) x).store : null;
+    }
+
+
+    // 値を語にする。リストは cdr の方向に反復して格納する。
+    private long put(Object x) {
+        x = LL.force(x);
+        if (x instanceof Rope)
+            x = x.toString();
+        if (x == null) {
+            return NIL;
+        } else if (x instanceof Integer) {
+            return ((long) (Integer) x << 3) | INT;
+        } else if (x instanceof Double) {
+            long a = allocate(1);
+            set(a, Double.doubleToRawLongBits((Double) x));
+            return word(DOUBLE, a);
+        } else if (x instanceof String && ((String) x).length() <
+                   (CHUNK_WORDS - 1) * 4L) {
+            String s = (String) x;
+            int n = s.length();
+            long a = allocate(1 + (n + 3) / 4);
+            set(a, n);
+            for (int i = 0; i < n; i += 4) {
+                long w = 0;
+                for (int k = 0; k < 4 && i + k < n; k++)
+                    w |= (long) s.charAt(i + k) << (16 * k);
+                set(a + 1 + i / 4, w);
+            }
+            return word(STRING, a);
+        } else if (x instanceof Cell) {
+            long first = 0;
+            long prev = -1;
+            Object j = x;
+            while (j instanceof Cell) {
+                Cell c = (Cell) j;
+                long a = allocateCell();
+                if (prev < 0)
+                    first = a;
+                else
+                    set(prev + 1, word(CELL, a));
+                set(a, put(c.car));
+                prev = a;
+                j = LL.force(c.getCdr());
+            }
+            set(prev + 1, put(j));
+            return word(CELL, first);
+        } else {
+            Integer i = objectIndex.get(x);
+            if (i == null) {
+                i = objects.size();
+                objects.add(x);
+                objectIndex.put(x, i);
+            }
+            return word(OBJECT, i);
+        }
+    }
+
+    // 語を値にする。セルはビューとする。
+    private Object decode(long w) {
+        long v = w >> 3;
+        switch ((int) w & 7) {
+        case NIL:
+            return null;
+        case INT:
+            return (int) v;
+        case CELL:
+            return view(v);
+        case STRING: {
+            int n = (int) get(v);
+            char[] chars = new char[n];
+            for (int i = 0; i < n; i += 4) {
+                long x = get(v + 1 + i / 4);
+                for (int k = 0; k < 4 && i + k < n; k++)
+                    chars[i + k] = (char) (x >>> (16 * k));
+            }
+            return new String (chars);
+        }
+        case DOUBLE:
+            return Double.longBitsToDouble(get(v));
+        default:
+            return objects.get((int) v);
+        }
+    }
+
+    // 番地のセルのビューを返す。その番地のビューが残っていればそれを返す。
+    private View view(long address) {
+        if (! pinned.isEmpty()) {
+            View v = pinned.get(address);
+            if (v != null)
+                return v;
+        }
+        expunge();
+        for (;;) {
+            ViewRef r = views.get(address);
+            if (r != null) {
+                View v = r.get();
+                if (v != null)
+                    return v;
+            }
+            View v = new View (this, address);
+            ViewRef nr = new ViewRef (v, address, queue);
+            if (r == null ? views.putIfAbsent(address, nr) == null :
+                views.replace(address, r, nr))
+                return v;
+        }
+    }
+
+    // 回収されたビューを表から除く。
+    private void expunge() {
+        ViewRef r;
+        while ((r = (ViewRef) queue.poll()) != null)
+            views.remove(r.address, r);
+    }
+
+    private static long word(int tag, long value) {
+        return (value << 3) | tag;
+    }
+
+    private long allocateCell() {
+        cells++;
+        return allocate(2);
+    }
+
+    // n 語を割り当てる。語の並びはバッファの境界をまたがない。
+    private long allocate(int n) {
+        long offset = top % CHUNK_WORDS;
+        if (offset == 0 || offset + n > CHUNK_WORDS) {
+            if (offset != 0)
+                top += CHUNK_WORDS - offset;
+            ByteBuffer b = ByteBuffer.allocateDirect(CHUNK_WORDS * 8);
+            chunks.add(b.asLongBuffer());
+        }
+        long a = top;
+        top += n;
+        return a;
+    }
+
+    private long get(long address) {
+        LongBuffer b = chunks.get((int) (address / CHUNK_WORDS));
+        return b.get((int) (address % CHUNK_WORDS));
+    }
+
+    private void set(long address, long value) {
+        LongBuffer b = chunks.get((int) (address / CHUNK_WORDS));
+        b.put((int) (address % CHUNK_WORDS), value);
+    }
+
+
+    /** 格納されたセルのビュー */
+    static final class View extends Cell
+    {
+        final OffHeapStore store;
+        private final long address;
+
+        View (OffHeapStore store, long address) {
+            super (null, null);
+            this.store = store;
+            this.address = address;
+            car = store.decode(store.get(address));
+            long d = store.get(address + 1);
+            if (((int) d & 7) == CELL)
+                cdr = new Rest (store, d >> 3);
+            else
+                cdr = store.decode(d);
+        }
+
+        /** 書き換えに備えて，このビューをヒープ上に固定する。
+         * 以後，同じ番地のセルとしては常にこのビューが使われる。
+         */
+        @Override void beforeUpdate() {
+            store.pinned.putIfAbsent(address, this);
+        }
+    } // View
+
+    /** 番地を覚えたビューへの弱参照 */
+    private static final class ViewRef extends WeakReference<View>
+    {
+        final long address;
+
+        ViewRef (View v, long address, ReferenceQueue<View> queue) {
+            super (v, queue);
+            this.address = address;
+        }
+    } // ViewRef
+
+    /** ビューの，まだセルが作られていない後続部分 */
+    private static final class Rest extends Cell.Tail
+    {
+        private final OffHeapStore store;
+        private final long address;
+        private WeakReference<View> cache = null;
+
+        Rest (OffHeapStore store, long address) {
+            this.store = store;
+            this.address = address;
+        }
+
+        Cell get(Cell owner) {
+            View v = (cache == null) ? null : cache.get();
+            if (v == null) {
+                v = store.view(address);
+                cache = new WeakReference<View> (v);
+            }
+            return v;
+        }
+    } // Rest
+} // OffHeapStore
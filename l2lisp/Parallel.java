@@ -0,0 +1,225 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** pmapcar, pfilter, preduce の実装.
+ * 列を配列にし，その区間を ForkJoinPool の共通プールで分割統治する。
+ * Lisp の関数は複数のスレッドから呼び出されるから，副作用のない
+ * 関数であること。結果の順序は逐次の場合と同じである。
+ * 短い列は呼出し元のスレッドで逐次に処理する。
+ * <p>
+ * 関数が送出した例外は，最初の一つを記録して残りの処理を打ち切った後，
+ * 呼出し元のスレッドでそのまま送出し直す。
+ */
+final class Parallel
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Parallel () {}
+
+    /** これ以上の長さの列は並列に処理する。*/
+    static int MIN_PARALLEL_LENGTH = 1 << 9;
+
+    /** 一つのタスクが逐次に処理する要素数の下限 */
+    static int MIN_CHUNK = 1 << 5;
+
+    /** (pmapcar fn seq) の実装
+     * @return 各要素に fn を適用した結果のリスト
+     */
+    static Object mapcar(Function f, Object seq, IInterp interp, Cell env) {
+        final Object[] in = toArray(seq);
+        final Object[] out = new Object[in.length];
+        new Job (f, interp, env) {
+            Object leaf(int from, int to) {
+                for (int i = from; i < to; i++)
+                    out[i] = call(in[i]);
+                return null;
+            }
+        }.run(in.length);
+        return Cell.fromArray(out);
+    }
+
+    /** (pfilter fn seq) の実装
+     * @return fn が真を返した要素からなるリスト
+     */
+    static Object filter(Function f, Object seq, IInterp interp, Cell env) {
+        final Object[] in = toArray(seq);
+        final boolean[] keep = new boolean[in.length];
+        new Job (f, interp, env) {
+            Object leaf(int from, int to) {
+                for (int i = from; i < to; i++)
+                    keep[i] = (LL.force(call(in[i])) != null);
+                return null;
+            }
+        }.run(in.length);
+        int n = 0;
+        for (boolean b: keep)
+            if (b)
+                n++;
+        Object[] out = new Object[n];
+        int k = 0;
+        for (int i = 0; i < in.length; i++)
+            if (keep[i])
+                out[k++] = in[i];
+        return Cell.fromArray(out);
+    }
+
+    /** (preduce fn seq) の実装
+     * 各区間を左から畳み込み，隣り合う区間の結果を fn で結合する。
+     * だから fn は結合的であること。
+     * @return 空ならば (fn)，さもなくば畳み込んだ値
+     */
+    static Object reduce(Function f, Object seq, IInterp interp, Cell env) {
+        final Object[] in = toArray(seq);
+        if (in.length == 0)
+            return f.apply(null, interp, env);
+        return new Job (f, interp, env) {
+            Object leaf(int from, int to) {
+                Object r = in[from];
+                for (int i = from + 1; i < to; i++)
+                    r = call(r, in[i]);
+                return r;
+            }
+
+            @Override Object combine(Object left, Object right) {
+                return call(left, right);
+            }
+        }.run(in.length);
+    }
+
+    /** 列の要素を並べた新しい配列を作る。
+     * リストは cdr の約束をかなえながらたどる。数値の配列の要素と
+     * 文字列の文字は Lisp の数にする。
+     */
+    static Object[] toArray(Object x) {
+        x = LL.force(x);
+        if (x == null) {
+            return new Object[0];
+        } else if (x instanceof Object[]) {
+            return ((Object[]) x).clone();
+        } else if (x instanceof AdjustableVector) {
+            AdjustableVector v = (AdjustableVector) x;
+            return Arrays.copyOf(v.array(), v.size());
+        } else if (x instanceof int[]) {
+            int[] v = (int[]) x;
+            Object[] a = new Object[v.length];
+            for (int i = 0; i < v.length; i++)
+                a[i] = v[i];
+            return a;
+        } else if (x instanceof double[]) {
+            double[] v = (double[]) x;
+            Object[] a = new Object[v.length];
+            for (int i = 0; i < v.length; i++)
+                a[i] = v[i];
+            return a;
+        } else if (x instanceof long[]) {
+            long[] v = (long[]) x;
+            Object[] a = new Object[v.length];
+            for (int i = 0; i < v.length; i++)
+                a[i] = BuiltInFunctions.reg(v[i]);
+            return a;
+        } else if (x instanceof byte[]) {
+            byte[] v = (byte[]) x;
+            Object[] a = new Object[v.length];
+            for (int i = 0; i < v.length; i++)
+                a[i] = (int) v[i];
+            return a;
+        } else if (x instanceof char[]) {
+            char[] v = (char[]) x;
+            Object[] a = new Object[v.length];
+            for (int i = 0; i < v.length; i++)
+                a[i] = (int) v[i];
+            return a;
+        } else if (x instanceof Cell || x instanceof Iterable ||
+                   x instanceof CharSequence) {
+            ArrayList<Object> a = new ArrayList<Object> ();
+            for (Object e: BuiltInFunctions.toIterable(x))
+                a.add(e);
+            return a.toArray();
+        } else {
+            throw new EvalException ("sequence expected", x);
+        }
+    }
+
+
+    /** 配列の区間ごとの処理 */
+    private static abstract class Job
+    {
+        private final Function f;
+        private final IInterp interp;
+        private final Cell env;
+        private final AtomicReference<RuntimeException> error
+            = new AtomicReference<RuntimeException> ();
+
+        Job (Function f, IInterp interp, Cell env) {
+            this.f = f;
+            this.interp = interp;
+            this.env = env;
+        }
+
+        /** 区間 [from, to) を逐次に処理する。*/
+        abstract Object leaf(int from, int to);
+
+        /** 隣り合う区間の結果を結合する。*/
+        Object combine(Object left, Object right) {
+            return null;
+        }
+
+        Object call(Object... args) {
+            return f.apply(LL.list(args), interp, env);
+        }
+
+        /** 長さ n の区間 [0, n) を処理する。*/
+        Object run(int n) {
+            if (n < MIN_PARALLEL_LENGTH)
+                return leaf(0, n);
+            int p = ForkJoinPool.getCommonPoolParallelism();
+            int grain = Math.max(MIN_CHUNK, n / (8 * p));
+            Object r = ForkJoinPool.commonPool().invoke
+                (new Part (this, 0, n, grain));
+            RuntimeException ex = error.get();
+            if (ex != null)
+                throw ex;
+            return r;
+        }
+    } // Job
+
+    /** 区間を半分ずつに分けて処理するタスク */
+    private static final class Part extends RecursiveTask<Object>
+    {
+        private final Job job;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        Part (Job job, int from, int to, int grain) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        protected Object compute() {
+            if (job.error.get() != null)
+                return null;    // 打ち切る。
+            try {
+                if (to - from <= grain)
+                    return job.leaf(from, to);
+                int mid = (from + to) >>> 1;
+                Part left = new Part (job, from, mid, grain);
+                left.fork();
+                Object r = new Part (job, mid, to, grain).compute();
+                Object l = left.join();
+                if (job.error.get() != null)
+                    return null;
+                return job.combine(l, r);
+            } catch (RuntimeException ex) {
+                job.error.compareAndSet(null, ex);
+                return null;
+            }
+        }
+    } // Part
+} // Parallel
@@ -0,0 +1,170 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.*;
+
+/** 遅延リストの先読み.
+ * 背景のスレッドが元のリストを最大 n 要素先までたどって force し，
+ * 得た要素をキューで受け渡す。受け取る側には，元のリストと同じ要素から
+ * なる遅延リストとして見える。これにより，リストを作る計算と使う計算が
+ * 並行に進む。
+ * <p>
+ * 元のリストの約束は背景のスレッドで果たされる。Promise は一度だけ
+ * 評価されることを保証するから，元のリストを別に読んでもよい。
+ * ただし，約束の中の式が大域変数を書き換える場合の結果は保証しない。
+ * 受け取る側がリストを捨てれば，背景のスレッドもやがて終わる。
+ */
+final class Prefetch
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Prefetch () {}
+
+    /** 背景のスレッドが，受け取る側が残っているかを確かめる間隔 (ミリ秒) */
+    private static final long CHECK_INTERVAL = 1000;
+
+    /** リストの終わりを表す値 */
+    private static final Object END = new Object ();
+
+    /** キューの中で nil を表す値 (BlockingQueue は null を受け付けない) */
+    private static final Object NIL = new Object ();
+
+    /** (prefetch n x) の実装
+     * @param n 先読みする要素の数の上限
+     * @param x 元のリスト (約束でもよい)
+     * @return x と同じ要素からなる遅延リスト
+     */
+    static Object of(int n, Object x) {
+        BlockingQueue<Object> queue = new LinkedBlockingQueue<Object> ();
+        Semaphore credits = new Semaphore (n);
+        Take take = new Take (queue, credits);
+        LL.BACKGROUND.execute(new Producer (x, queue, credits, take));
+        return new Promise (take);
+    }
+
+
+    /** 背景のスレッドで起きた例外またはエラー (スタック溢れ等) */
+    private static final class Failure
+    {
+        final Throwable ex;
+
+        Failure (Throwable ex) {
+            this.ex = ex;
+        }
+
+        /** 受け取る側のスレッドで送出し直す。*/
+        RuntimeException rethrow() {
+            if (ex instanceof RuntimeException)
+                throw (RuntimeException) ex;
+            else if (ex instanceof Error)
+                throw (Error) ex;
+            else
+                throw new EvalException ("prefetch failed", (Exception) ex);
+        }
+    } // Failure
+
+    /** 元のリストをたどる背景の仕事 */
+    private static final class Producer implements Runnable
+    {
+        private Object x;
+        private final BlockingQueue<Object> queue;
+        private final Semaphore credits;
+        private final WeakReference<Take> owner;
+
+        Producer (Object x, BlockingQueue<Object> queue, Semaphore credits,
+                  Take owner) {
+            this.x = x;
+            this.queue = queue;
+            this.credits = credits;
+            this.owner = new WeakReference<Take> (owner);
+        }
+
+        public void run() {
+            try {
+                for (;;) {
+                    if (! credits.tryAcquire(CHECK_INTERVAL,
+                                             TimeUnit.MILLISECONDS)) {
+                        if (owner.get() == null)
+                            return; // 受け取る側がいなくなった。
+                        continue;
+                    }
+                    Object v = LL.force(x);
+                    if (v == null) {
+                        queue.put(END);
+                        return;
+                    }
+                    if (! (v instanceof Cell))
+                        throw new EvalException ("list expected", v);
+                    Cell c = (Cell) v;
+                    queue.put((c.car == null) ? NIL : c.car);
+                    x = c.getCdr();
+                }
+            } catch (InterruptedException ex) {
+                // 終わる。
+            } catch (Throwable ex) { // 受け取る側を待たせたままにしない。
+                queue.offer(new Failure (ex));
+            }
+        }
+    } // Producer
+
+    /** キューから要素を受け取って遅延リストにする約束の中身 */
+    private static final class Take extends Promise.Thunk
+    {
+        private final BlockingQueue<Object> queue;
+        private final Semaphore credits;
+        private Failure failure = null;
+
+        Take (BlockingQueue<Object> queue, Semaphore credits) {
+            this.queue = queue;
+            this.credits = credits;
+        }
+
+        /** 少なくとも一つの要素を待って受け取り，すでに届いている要素も
+         * 合わせて (LL.LAZY_CHUNK_SIZE 個まで) 並べる。
+         * 最後のセルの cdr は残りを受け取る約束とする。
+         */
+        Object force(Promise self) {
+            if (failure != null)
+                throw failure.rethrow();
+            Cell head = null;
+            Cell tail = null;
+            int count = 0;
+            Object e;
+            try {
+                e = queue.take();
+            } catch (InterruptedException ex) {
+                throw new EvalException ("interrupted");
+            }
+            for (;;) {
+                if (e == END || e instanceof Failure)
+                    break;
+                Cell c = new Cell ((e == NIL) ? null : e, null);
+                if (head == null)
+                    head = c;
+                else
+                    tail.cdr = c;
+                tail = c;
+                count++;
+                if (count >= LL.LAZY_CHUNK_SIZE)
+                    break;
+                e = queue.poll();
+                if (e == null)
+                    break;
+            }
+            credits.release(count);
+            if (e instanceof Failure) {
+                if (head == null) {
+                    failure = (Failure) e;
+                    throw failure.rethrow();
+                }
+                queue.add(e);   // 次に受け取るときに送出する。
+                e = null;
+            }
+            Object rest = (e == END) ? null : new Promise (this);
+            if (head == null)
+                return rest;
+            tail.cdr = rest;
+            return head;
+        }
+    } // Take
+} // Prefetch
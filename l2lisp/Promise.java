@@ -1,19 +1,51 @@
-// H22.7/14 (鈴)
+// H22.7/14, R8.10/19 (鈴)
 package l2lisp;
 
-/** 約束，つまり Lisp 式 (delay exp) の評価結果
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/** 約束，つまり Lisp 式 (delay exp) の評価結果.
+ * Java で書かれた Thunk を中身とする約束もある。
+ * <p>
+ * 複数のスレッドから果たそうとしても，式は一度だけ評価される。
+ * 評価中の約束を別のスレッドが果たそうとすると，評価が終わるまで待つ。
+ * 同じスレッドからの再入はこれまでどおり式を評価し直す。
+ * 評価する権利は Java のモニタではなく owner の CAS で得る。
+ * モニタを保持したまま待つと，仮想スレッドがキャリア・スレッドを
+ * 占有したままになり，ジェネレータ等と組み合わせたときに行き詰まる。
  */
 public final class Promise
 {
-    private Object exp;
-    private Cell env;
-    private final IInterp interp;
+    // 式，Thunk，転送先の約束，または果たした値
+    // 転送の後は owner を持たずに fulfil で書き換えられうるから volatile
+    private volatile Object exp;
+    private volatile Cell env;  // exp を書いてから書く。
+    private final IInterp interp; // Thunk ならば null
+    private volatile Thread owner = null; // 式を評価しているスレッド
+    private volatile ConcurrentLinkedQueue<Thread> waiters = null;
+
+    private static final AtomicReferenceFieldUpdater<Promise, Thread> OWNER =
+        AtomicReferenceFieldUpdater.newUpdater
+        (Promise.class, Thread.class, "owner");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater
+        <Promise, ConcurrentLinkedQueue> WAITERS =
+        AtomicReferenceFieldUpdater.newUpdater
+        (Promise.class, ConcurrentLinkedQueue.class, "waiters");
 
     /** ほかのどこにもない環境。
      * 約束が果たされたかどうかを，env がこの環境かどうかで判断する。
      */
     private static final Cell NONE = new Cell (null, null);
 
+    /** 式の評価結果がまだ果たされていない約束だったことを表す環境。
+     * このとき exp はその約束であり，この約束はそれと共に果たされる。
+     */
+    private static final Cell FORWARD = new Cell (null, null);
+
     /** 
      * @param exp いつか評価されると約束される Lisp 式
      * @param env そのとき使うべき環境
@@ -25,12 +57,22 @@ public final class Promise
         this.interp = interp;
     }
 
+    /** Java で書かれた中身から約束を作る。
+     * @param thunk 約束を果たすときに呼ばれる中身
+     */
+    Promise (Thunk thunk) {
+        this.exp = thunk;
+        this.env = null;
+        this.interp = null;
+    }
+
     /** 約束の文字列表現。
      * @return 約束を果たす前ならば，約束であることを表す文字列。
      * 約束を果たした後ならば，かなえた Lisp 値の文字列表現。
      */
     @Override public String toString() {
-        return (env == NONE) ?  // 約束を果たした？
+        Cell e = env;
+        return (e == NONE) ?    // 約束を果たした？
             LL.str(exp) :
             String.format("#<promise:%x>", hashCode());
     }
@@ -40,26 +82,163 @@ public final class Promise
      * 約束を果たした後ならば，かなえた Lisp 値。
      */
     public Object value() {
-        return (env == NONE) ?  // 約束を果たした？
+        Cell e = env;
+        return (e == NONE) ?    // 約束を果たした？
             exp :
             this;
     }
 
     /** もしもまだならば，約束を果たす。
+     * 評価結果がまた約束ならば，それも続けて果たす。
+     * 約束の長い連鎖でもスタックを消費しないように再帰せずにたどり，
+     * 最後に得た値で連鎖上の各約束を果たす。
+     * 各約束の式は，その約束の owner となって評価する。評価結果が
+     * 約束ならば，それへの転送を記録して owner を降り，その約束へ進む。
      * @return かなえた Lisp 値
      * @throws EvalException かなえる時に発生した例外
      */
     public Object deliver() throws EvalException {
-        if (env != NONE) {
-            Object x;
-            x = interp.eval(exp, env);
-            if (x instanceof Promise)
-                x = ((Promise) x).deliver();
-            if (env != NONE) {
-                exp = x;
-                env = NONE;
+        if (env == NONE)
+            return exp;
+        ArrayList<Promise> chain = null; // p に至るまでの約束
+        Promise p = this;
+        Promise mark = this;    // 循環の検出 (Brent の方法) に使う。
+        int steps = 0;
+        int limit = 1;
+        Object x;
+        Thread me = Thread.currentThread();
+        for (;;) {
+            Promise q;
+            Cell e = p.env;
+            if (e == NONE) {    // 別のスレッドが果たした？
+                x = p.exp;
+                break;
+            } else if (e == FORWARD) {
+                // env を読んだ後に果たされていれば，exp は既に値である。
+                Object f = p.exp;
+                if (! (f instanceof Promise)) {
+                    x = f;
+                    break;
+                }
+                q = (Promise) f;
+            } else {
+                boolean reentrant = (p.owner == me);
+                if (! reentrant && ! OWNER.compareAndSet(p, null, me)) {
+                    p.await(me);
+                    continue;
+                }
+                try {
+                    e = p.env;
+                    if (e == NONE) {
+                        x = p.exp;
+                        break;
+                    } else if (e == FORWARD) {
+                        Object f = p.exp;
+                        if (! (f instanceof Promise)) {
+                            x = f;
+                            break;
+                        }
+                        q = (Promise) f;
+                    } else {
+                        if (p.interp == null)
+                            x = ((Thunk) p.exp).force(p);
+                        else
+                            x = p.interp.eval(p.exp, e);
+                        if (p.env == NONE) { // 評価中に果たされていた？
+                            x = p.exp;
+                            break;
+                        } else if (! (x instanceof Promise)) {
+                            p.fulfil(x);
+                            break;
+                        }
+                        q = (Promise) x;
+                        if (p.env != FORWARD) {
+                            p.exp = q;
+                            p.env = FORWARD;
+                        }
+                    }
+                } finally {
+                    if (! reentrant)
+                        p.release();
+                }
+            }
+            if (q.env == NONE) {
+                x = q.exp;
+                break;
             }
+            // 連鎖上の約束はどれも転送済みだから，再来すれば循環である。
+            if (q == mark)
+                throw new EvalException ("promise refers to itself", this);
+            if (++steps == limit) {
+                mark = q;
+                limit <<= 1;
+                steps = 0;
+            }
+            if (chain == null)
+                chain = new ArrayList<Promise> ();
+            chain.add(p);
+            p = q;
+        }
+        p.fulfil(x);
+        if (chain != null)
+            for (Promise c: chain)
+                c.fulfil(x);
+        return x;
+    }
+
+    /** この約束を果たしている最中か？
+     * 約束を果たすための評価の中から同じ約束を参照したときに真となる。
+     */
+    boolean isDelivering() {
+        return owner != null;
+    }
+
+    // 別のスレッドが評価を終えるまで待つ。
+    // 待つ側は登録してから owner を確かめ，終える側は owner を降りてから
+    // 登録された待ち手を起こすから，起こし損ねることはない。
+    @SuppressWarnings("unchecked")
+    private void await(Thread me) {
+        ConcurrentLinkedQueue<Thread> w = waiters;
+        if (w == null) {
+            WAITERS.compareAndSet(this, null,
+                                  new ConcurrentLinkedQueue<Thread> ());
+            w = waiters;
         }
-        return exp;
+        w.add(me);
+        try {
+            while (owner != null && env != NONE && env != FORWARD)
+                LockSupport.park(this);
+        } finally {
+            w.remove(me);
+        }
+    }
+
+    // owner を降り，待っているスレッドを起こす。
+    private void release() {
+        owner = null;
+        ConcurrentLinkedQueue<Thread> w = waiters;
+        if (w != null)
+            for (Thread t: w)
+                LockSupport.unpark(t);
     }
+
+    // まだならば，値 x で約束を果たす。
+    // 連鎖上の約束は同じ値で果たされるから，競合しても結果は変わらない。
+    private void fulfil(Object x) {
+        if (env != NONE) {
+            exp = x;
+            env = NONE;
+        }
+    }
+
+
+    /** Java で書かれた約束の中身 */
+    static abstract class Thunk
+    {
+        /** 約束を果たす値を計算する。
+         * @param self この中身をもつ約束
+         * @return 約束を果たす値
+         */
+        abstract Object force(Promise self);
+    } // Thunk
 } // Promise
@@ -0,0 +1,163 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+
+/** 不変の長い文字列を表すロープ.
+ * 葉を String とする二分木であり，連結は部分木を共有して O(log n) で行う。
+ * Lisp からは文字列と同じく stringp で真となり，length や aref が使える。
+ * 木は AVL 木と同じく左右の深さの差を 1 以下に保つ。
+ */
+public final class Rope implements CharSequence
+{
+    private final CharSequence left;  // String または Rope
+    private final CharSequence right; // String または Rope
+    private final int length;
+    private final int depth;
+    private String flat = null; // toString() の結果のキャッシュ
+
+    /** これ以下の長さならば連結した結果を String とする。*/
+    static final int MAX_LEAF = 128;
+
+    private Rope (CharSequence left, CharSequence right) {
+        this.left = left;
+        this.right = right;
+        length = left.length() + right.length();
+        depth = Math.max(depthOf(left), depthOf(right)) + 1;
+    }
+
+    /** 文字列またはロープの並びを連結する。
+     * @param parts String または Rope の並び
+     * @return 連結結果。短ければ String，さもなくば Rope
+     */
+    public static CharSequence concat(CharSequence... parts) {
+        CharSequence z = "";
+        for (CharSequence s: parts)
+            z = concat(z, s);
+        return z;
+    }
+
+    /** 二つの文字列またはロープを連結する。
+     * @param a String または Rope
+     * @param b String または Rope
+     * @return 連結結果。短ければ String，さもなくば Rope
+     */
+    public static CharSequence concat(CharSequence a, CharSequence b) {
+        if (a.length() == 0)
+            return b;
+        else if (b.length() == 0)
+            return a;
+        else
+            return join(a, b);
+    }
+
+    /** 長さを返す。*/
+    public int length() {
+        return length;
+    }
+
+    /** index 番目の文字を返す。木を葉までたどる。*/
+    public char charAt(int index) {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException ("index: " + index);
+        CharSequence s = this;
+        while (s instanceof Rope) {
+            Rope r = (Rope) s;
+            int n = r.left.length();
+            if (index < n) {
+                s = r.left;
+            } else {
+                s = r.right;
+                index -= n;
+            }
+        }
+        return s.charAt(index);
+    }
+
+    /** 部分文字列を返す。*/
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    /** 平坦な String にする。結果はキャッシュする。*/
+    @Override public String toString() {
+        String s = flat;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder (length);
+            for (String leaf: leaves(this))
+                sb.append(leaf);
+            s = sb.toString();
+            flat = s;
+        }
+        return s;
+    }
+
+    private static int depthOf(CharSequence s) {
+        return (s instanceof Rope) ? ((Rope) s).depth : 0;
+    }
+
+    // 平衡を保って連結する。浅い方を深い方の端の部分木と連結する。
+    // 短い葉どうしはまとめて一つの String にする。
+    private static CharSequence join(CharSequence a, CharSequence b) {
+        if (a.length() + b.length() <= MAX_LEAF)
+            return a.toString() + b;
+        int da = depthOf(a);
+        int db = depthOf(b);
+        if (da > db + 1) {
+            Rope ra = (Rope) a;
+            return node(ra.left, join(ra.right, b));
+        } else if (db > da + 1) {
+            Rope rb = (Rope) b;
+            return node(join(a, rb.left), rb.right);
+        } else {
+            return new Rope (a, b);
+        }
+    }
+
+    // 深さの差が 2 までの部分木から，回転によって平衡な節を作る。
+    private static Rope node(CharSequence l, CharSequence r) {
+        int dl = depthOf(l);
+        int dr = depthOf(r);
+        if (dr > dl + 1) {
+            Rope rr = (Rope) r;
+            if (depthOf(rr.left) > depthOf(rr.right)) { // 二重回転
+                Rope rl = (Rope) rr.left;
+                return new Rope (new Rope (l, rl.left),
+                                 new Rope (rl.right, rr.right));
+            }
+            return new Rope (new Rope (l, rr.left), rr.right);
+        } else if (dl > dr + 1) {
+            Rope lr = (Rope) l;
+            if (depthOf(lr.right) > depthOf(lr.left)) { // 二重回転
+                Rope lrr = (Rope) lr.right;
+                return new Rope (new Rope (lr.left, lrr.left),
+                                 new Rope (lrr.right, r));
+            }
+            return new Rope (lr.left, new Rope (lr.right, r));
+        } else {
+            return new Rope (l, r);
+        }
+    }
+
+    // 葉を左から順に並べる。深い木に備えて再帰せずにたどる。
+    private static List<String> leaves(Rope r) {
+        List<String> a = new ArrayList<String> ();
+        ArrayDeque<CharSequence> stack = new ArrayDeque<CharSequence> ();
+        stack.push(r);
+        while (! stack.isEmpty()) {
+            CharSequence s = stack.pop();
+            if (s instanceof Rope) {
+                Rope t = (Rope) s;
+                if (t.flat != null) {
+                    a.add(t.flat);
+                } else {
+                    stack.push(t.right);
+                    stack.push(t.left);
+                }
+            } else {
+                a.add((String) s);
+            }
+        }
+        return a;
+    }
+} // Rope
@@ -0,0 +1,224 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/** 暖まったインタープリタで Lisp スクリプトを評価し続けるサーバと，
+ * そのクライアント.
+ * サーバはループバック・アドレスの TCP ポートで待ち，接続ごとに
+ * 仮想スレッド (Java 21 より前ではデーモン・スレッド) で
+ * InterpPool から借りたインタープリタを使ってスクリプトを評価する。
+ * だからクライアントは JVM の起動と Prelude の読み込みを待たずに済む。
+ * <p>
+ * クライアントはスクリプトのテキストを送って出力側を閉じる。
+ * サーバは届いた式から順に評価し，出力をフレームに分けて送り返す。
+ * フレームは 1 バイトの種別と 4 バイトの長さと UTF-8 のテキストからなる。
+ * 種別は標準出力 'o'，標準エラー出力 'e'，終了状態 'x' (長さの代わりに
+ * 状態そのもの) である。'x' が最後のフレームとなる。
+ * <p>
+ * サーバの中の (exit i) はプロセスを終了せず，その接続の評価を
+ * 終了状態 i で終える。ファイル名はサーバの作業ディレクトリから
+ * 解釈される。接続を認証しないから，同じ計算機の利用者は誰でも
+ * サーバの権限で式を評価できることに注意すること。
+ */
+final class Server
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Server () {}
+
+    /** 既定のポート番号 */
+    static final int DEFAULT_PORT = 4747;
+
+    // フレームの種別
+    private static final int OUT = 'o';
+    private static final int ERR = 'e';
+    private static final int EXIT = 'x';
+
+    /** スクリプトを評価するインタープリタで組込みの exit を置き換える関数
+     * @see Batch
+     */
+    static final Callable[] SCRIPT_FUNCTIONS = new Callable[] {
+        new Callable ("exit", 1) {
+            { doc = "(exit i): コード i でこのスクリプトの評価を終える"; }
+            public Object call(Object[] a) {
+                throw new Exit (((Number) a[0]).intValue());
+            }
+        }
+    };
+
+    /** サーバとして接続を受け付け続ける。
+     * @param port ループバック・アドレスで待つポート番号
+     * @param poolSize 同時に評価する接続の数の上限
+     * @throws IOException ポートで待てなかった。
+     */
+    static void serve(int port, int poolSize) throws IOException {
+        // (read) はサーバの標準入力でなく，空の入力から読む。
+        Interp base = new Interp (new LinesFromString (""), null);
+        LL.loadPrelude(base);
+        base.load(SCRIPT_FUNCTIONS);
+        final InterpPool pool = new InterpPool (base, poolSize);
+        ServerSocket ss = new ServerSocket
+            (port, 50, InetAddress.getLoopbackAddress());
+        System.err.println("l2lisp server listening on "
+                           + ss.getLocalSocketAddress());
+        for (;;) {
+            final Socket s = ss.accept();
+            LL.newThread(new Runnable () {
+                    public void run() {
+                        handle(s, pool);
+                    }
+                }, true, "l2lisp-server").start();
+        }
+    }
+
+    // 一つの接続を処理する。
+    private static void handle(Socket s, InterpPool pool) {
+        try {
+            try {
+                DataOutputStream out = new DataOutputStream
+                    (new BufferedOutputStream (s.getOutputStream()));
+                // run が入力を閉じてもソケットは閉じない。
+                InputStream in = new FilterInputStream (s.getInputStream()) {
+                        @Override public void close() {}
+                    };
+                int status = 0;
+                Interp interp = pool.borrow();
+                PrintWriter pw = new PrintWriter
+                    (new BufferedWriter (new FrameWriter (OUT, out)), true);
+                try {
+                    interp.setWriter(pw);
+                    interp.run(new LinesFromInputStream (in), null);
+                } catch (Exit ex) {
+                    status = ex.status;
+                } catch (RuntimeException ex) { // EvalException を含む
+                    pw.flush();
+                    sendText(out, ERR, ex + "\n");
+                    status = 1;
+                } catch (StackOverflowError ex) {
+                    pw.flush();
+                    sendText(out, ERR, ex + "\n");
+                    status = 1;
+                } finally {
+                    pw.flush();
+                    pool.release(interp);
+                }
+                synchronized (out) {
+                    out.writeByte(EXIT);
+                    out.writeInt(status);
+                    out.flush();
+                }
+            } finally {
+                s.close();
+            }
+        } catch (IOException ex) {
+            // クライアントが去った。
+        } catch (InterruptedException ex) {
+            // サーバが終わる。
+        }
+    }
+
+    private static void sendText(DataOutputStream out, int kind, String text)
+        throws IOException
+    {
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        synchronized (out) {
+            out.writeByte(kind);
+            out.writeInt(b.length);
+            out.write(b);
+            out.flush();
+        }
+    }
+
+    /** クライアントとしてスクリプトをサーバに送り，出力を受け取る。
+     * @param port サーバのポート番号
+     * @param fnames 送るスクリプトのファイル名の並び ("-" は標準入力)
+     * @return サーバから受け取った終了状態
+     * @throws IOException サーバと通信できなかった。
+     */
+    static int client(int port, String[] fnames) throws IOException {
+        Socket s = new Socket (InetAddress.getLoopbackAddress(), port);
+        try {
+            OutputStream out = new BufferedOutputStream (s.getOutputStream());
+            byte[] buf = new byte[8192];
+            for (String fname: fnames) {
+                InputStream in = fname.equals("-") ? System.in :
+                    new FileInputStream (fname);
+                try {
+                    int n;
+                    while ((n = in.read(buf)) > 0)
+                        out.write(buf, 0, n);
+                    out.write('\n');
+                } finally {
+                    if (in != System.in)
+                        in.close();
+                }
+            }
+            out.flush();
+            s.shutdownOutput();
+            DataInputStream in = new DataInputStream
+                (new BufferedInputStream (s.getInputStream()));
+            for (;;) {
+                int kind = in.readByte();
+                if (kind == EXIT) {
+                    System.out.flush();
+                    return in.readInt();
+                }
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                PrintStream ps = (kind == ERR) ? System.err : System.out;
+                ps.write(b);
+                ps.flush();
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+
+    /** サーバの中の (exit i) が送出する例外.
+     * Callable が Exception を EvalException に包み，Lisp の catch が
+     * EvalException を捕えるから，それらを素通りするように Error とする。
+     */
+    static final class Exit extends Error
+    {
+        final int status;
+
+        Exit (int status) {
+            super (null, null, false, false);
+            this.status = status;
+        }
+    } // Exit
+
+    /** 書いた文字を一つのフレームとして送る Writer */
+    private static final class FrameWriter extends Writer
+    {
+        private final int kind;
+        private final DataOutputStream out;
+
+        FrameWriter (int kind, DataOutputStream out) {
+            this.kind = kind;
+            this.out = out;
+        }
+
+        @Override public void write(char[] cbuf, int off, int len)
+            throws IOException
+        {
+            if (len > 0)
+                sendText(out, kind, new String (cbuf, off, len));
+        }
+
+        @Override public void flush() throws IOException {
+            synchronized (out) {
+                out.flush();
+            }
+        }
+
+        @Override public void close() throws IOException {
+            flush();
+        }
+    } // FrameWriter
+} // Server
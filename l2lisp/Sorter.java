@@ -0,0 +1,301 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** sort と stable-sort の実装.
+ * リストはセルの cdr をつなぎ変えるマージソートで，ベクトルは
+ * 作業用の配列を使うマージソートでその場で整列する。どちらも安定であり，
+ * 比較一回につき Lisp の述語を一回だけ呼ぶ。大きなベクトルは
+ * ForkJoinPool の共通プールで並列に整列する。
+ * 組込みの &lt; と string&lt; による整列には Arrays.sort (TimSort) と
+ * Arrays.parallelSort を使う。
+ */
+final class Sorter
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Sorter () {}
+
+    /** これ以上の長さのベクトルは並列に整列する。*/
+    static final int MIN_PARALLEL_LENGTH = 1 << 13;
+
+    /** これ以下の長さの区間は挿入ソートで整列する。*/
+    private static final int MAX_INSERTION_LENGTH = 16;
+
+    /** 述語から順序を作る。
+     * 組込みの &lt; と string&lt; に対しては Lisp の関数呼出しを経由しない
+     * 順序を返す。
+     * @param pred (pred a b) が a が b より前であるときだけ真を返す述語
+     * @param interp 述語を呼び出す Lisp インタープリタ
+     * @param env 述語を呼び出すときの環境
+     * @return 述語に相当する順序
+     */
+    static Order orderOf(Function pred, IInterp interp, Cell env) {
+        if (pred == BuiltInFunctions.NUMBER_LESS)
+            return NUMBER_ORDER;
+        else if (pred == BuiltInFunctions.STRING_LESS)
+            return STRING_ORDER;
+        else
+            return new LispOrder (pred, interp, env);
+    }
+
+    /** リストを整列する。各セルを再利用し cdr をつなぎ変える。
+     * 各要素の約束はあらかじめかなえておくこと。
+     * @param list 整列するリスト
+     * @param order 順序
+     * @return 整列したリストの先頭のセル
+     */
+    static Cell sortList(Cell list, Order order) {
+        int n = 0;
+        for (Cell j = list; j != null; j = j.getCdrCell()) {
+            j.beforeUpdate();   // 以下で cdr を直接書き換えるから
+            n++;
+        }
+        Cell head = list;
+        // ボトムアップに幅 1, 2, 4, ... の部分列を併合する。
+        for (int width = 1; width < n; width *= 2) {
+            Cell newHead = null;
+            Cell tail = null;
+            Cell p = head;
+            while (p != null) {
+                Cell left = p;
+                Cell right = split(left, width);
+                p = split(right, width);
+                // left と right を併合して tail の後ろにつなぐ。
+                while (left != null && right != null) {
+                    Cell x;
+                    if (order.less(right.car, left.car)) { // 安定性のため
+                        x = right;
+                        right = right.getCdrCell();
+                    } else {
+                        x = left;
+                        left = left.getCdrCell();
+                    }
+                    if (tail == null)
+                        newHead = x;
+                    else
+                        tail.cdr = x;
+                    tail = x;
+                }
+                Cell rest = (left != null) ? left : right;
+                if (tail == null)
+                    newHead = rest;
+                else
+                    tail.cdr = rest;
+                while (tail.getCdrCell() != null)
+                    tail = tail.getCdrCell();
+            }
+            head = newHead;
+        }
+        return head;
+    }
+
+    /** 配列の区間 [from, to) を整列する。
+     * 各要素の約束はあらかじめかなえておくこと。
+     * 区間が長ければ並列に整列する。このとき Lisp の述語は複数の
+     * スレッドから呼び出される。述語が送出した例外は，整列を打ち切った
+     * 後，呼出し元のスレッドで送出し直す。
+     * @param a 整列する配列
+     * @param from 区間の先頭
+     * @param to 区間の末尾の次
+     * @param order 順序
+     */
+    static void sortArray(Object[] a, int from, int to, Order order) {
+        boolean parallel = (to - from >= MIN_PARALLEL_LENGTH);
+        if (order instanceof LispOrder) {
+            Object[] tmp = new Object[a.length];
+            if (! parallel) {
+                mergeSort(a, tmp, from, to, order);
+            } else {
+                Bridge bridge = new Bridge (order);
+                try {
+                    ForkJoinPool.commonPool().invoke
+                        (new Part (a, tmp, from, to, bridge));
+                } catch (RuntimeException ex) {
+                    bridge.rethrow();
+                    throw ex;
+                }
+            }
+        } else {
+            try {
+                if (parallel)
+                    Arrays.parallelSort(a, from, to, order);
+                else
+                    Arrays.sort(a, from, to, order);
+            } catch (IllegalArgumentException ex) { // NaN 等による矛盾
+                throw new EvalException ("inconsistent order", ex);
+            }
+        }
+    }
+
+    // 区間 [from, to) を tmp の同じ区間を作業域として整列する。
+    private static void mergeSort(Object[] a, Object[] tmp,
+                                  int from, int to, Order order) {
+        if (to - from <= MAX_INSERTION_LENGTH) {
+            for (int i = from + 1; i < to; i++) {
+                Object x = a[i];
+                int j = i;
+                for (; j > from && order.less(x, a[j - 1]); j--)
+                    a[j] = a[j - 1];
+                a[j] = x;
+            }
+        } else {
+            int mid = (from + to) >>> 1;
+            mergeSort(a, tmp, from, mid, order);
+            mergeSort(a, tmp, mid, to, order);
+            merge(a, tmp, from, mid, to, order);
+        }
+    }
+
+    // 整列済みの区間 [from, mid) と [mid, to) を併合する。
+    // 右の要素が厳密に前のときだけ右から取るから安定である。
+    private static void merge(Object[] a, Object[] tmp,
+                              int from, int mid, int to, Order order) {
+        if (! order.less(a[mid], a[mid - 1]))
+            return;             // すでに並んでいる。
+        System.arraycopy(a, from, tmp, from, mid - from);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to)
+            a[k++] = order.less(a[j], tmp[i]) ? a[j++] : tmp[i++];
+        while (i < mid)
+            a[k++] = tmp[i++];
+    }
+
+    // list から width 個目のセルの cdr を切り離し，その後続を返す。
+    private static Cell split(Cell list, int width) {
+        for (int i = 1; list != null && i < width; i++)
+            list = list.getCdrCell();
+        if (list == null)
+            return null;
+        Cell rest = list.getCdrCell();
+        list.cdr = null;
+        return rest;
+    }
+
+
+    /** 「より前」という二項関係による順序 */
+    static abstract class Order implements Comparator<Object>
+    {
+        /** a が b より厳密に前か？ */
+        abstract boolean less(Object a, Object b);
+
+        public int compare(Object a, Object b) {
+            if (less(a, b))
+                return -1;
+            else if (less(b, a))
+                return 1;
+            else
+                return 0;
+        }
+    } // Order
+
+    /** Lisp の述語による順序 */
+    private static final class LispOrder extends Order
+    {
+        private final Function pred;
+        private final IInterp interp;
+        private final Cell env;
+
+        LispOrder (Function pred, IInterp interp, Cell env) {
+            this.pred = pred;
+            this.interp = interp;
+            this.env = env;
+        }
+
+        boolean less(Object a, Object b) {
+            Cell args = new Cell (a, new Cell (b, null));
+            return LL.force(pred.apply(args, interp, env)) != null;
+        }
+    } // LispOrder
+
+    /** 組込みの &lt; に相当する数の順序 */
+    private static final Order NUMBER_ORDER = new Order () {
+            boolean less(Object a, Object b) {
+                return BuiltInFunctions.compare((Number) a, (Number) b) < 0;
+            }
+
+            @Override public int compare(Object a, Object b) {
+                return BuiltInFunctions.compare((Number) a, (Number) b);
+            }
+        };
+
+    /** 組込みの string&lt; に相当する文字列の順序 */
+    private static final Order STRING_ORDER = new Order () {
+            boolean less(Object a, Object b) {
+                return compare(a, b) < 0;
+            }
+
+            @Override public int compare(Object a, Object b) {
+                String s = BuiltInFunctions.asString(a);
+                String t = BuiltInFunctions.asString(b);
+                return s.compareTo(t);
+            }
+        };
+
+    /** 並列の整列のためのスレッド安全な順序.
+     * 最初に発生した例外を記録し，以後の比較を打ち切らせる。
+     */
+    private static final class Bridge extends Order
+    {
+        private final Order order;
+        private volatile RuntimeException error = null;
+
+        Bridge (Order order) {
+            this.order = order;
+        }
+
+        boolean less(Object a, Object b) {
+            if (error != null)
+                throw new CancellationException ();
+            try {
+                return order.less(a, b);
+            } catch (RuntimeException ex) {
+                synchronized (this) {
+                    if (error == null)
+                        error = ex;
+                }
+                throw ex;
+            }
+        }
+
+        /** 述語が例外を送出していたならば，それを送出し直す。*/
+        void rethrow() {
+            if (error != null)
+                throw error;
+        }
+    } // Bridge
+
+    /** 区間を半分ずつ並列に整列してから併合する仕事 */
+    private static final class Part extends RecursiveAction
+    {
+        private final Object[] a;
+        private final Object[] tmp;
+        private final int from;
+        private final int to;
+        private final Order order;
+
+        Part (Object[] a, Object[] tmp, int from, int to, Order order) {
+            this.a = a;
+            this.tmp = tmp;
+            this.from = from;
+            this.to = to;
+            this.order = order;
+        }
+
+        @Override protected void compute() {
+            if (to - from < MIN_PARALLEL_LENGTH) {
+                mergeSort(a, tmp, from, to, order);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Part (a, tmp, from, mid, order),
+                          new Part (a, tmp, mid, to, order));
+                merge(a, tmp, from, mid, to, order);
+            }
+        }
+    } // Part
+} // Sorter
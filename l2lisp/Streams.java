@@ -0,0 +1,280 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.math.BigInteger;
+import java.nio.CharBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongFunction;
+import java.util.stream.BaseStream;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** Lisp の列と java.util.stream の橋渡し.
+ * リスト，ベクトル，文字列の Spliterator を作り，逆に Java のストリームを
+ * Lisp の遅延リストにする。
+ * <p>
+ * 詰めた形のリスト (Cell 参照) とベクトルは大きさが分かり，半分ずつ
+ * 分割できるから，並列ストリームでよく分散する。セルを連ねたリストは
+ * 先頭から次第に大きくなる塊を配列に写して切り出す。
+ * 要素の約束は，Cell のイテレータと同じく，約束のまま与える。
+ */
+public final class Streams
+{
+    /** このクラスはインスタンスを作らない。*/
+    private Streams () {}
+
+    /** セルを連ねたリストから一度に切り出す要素数の増分 */
+    static final int BATCH_UNIT = 1 << 10;
+
+    /** セルを連ねたリストから一度に切り出す要素数の上限 */
+    static final int MAX_BATCH = 1 << 25;
+
+    /** Lisp の列の Spliterator を作る。
+     * @param x リスト (遅延リストを含む)，ベクトル，伸長可能なベクトル，
+     *  int[], long[], double[], byte[], char[] の配列 (要素は Lisp の数)，
+     *  文字列 (文字コードの並び) またはその他の Iterable
+     * @return x の各要素を順に与える Spliterator
+     * @throws EvalException x が列ではなかった。
+     */
+    @SuppressWarnings("unchecked")
+    public static Spliterator<Object> spliterator(Object x) {
+        x = LL.force(x);
+        if (x == null) {
+            return Spliterators.emptySpliterator();
+        } else if (x instanceof Cell) {
+            return new ListSpliterator ((Cell) x);
+        } else if (x instanceof Object[]) {
+            return Spliterators.spliterator((Object[]) x,
+                                            Spliterator.ORDERED);
+        } else if (x instanceof AdjustableVector) {
+            AdjustableVector v = (AdjustableVector) x;
+            return Spliterators.spliterator(v.array(), 0, v.size(),
+                                            Spliterator.ORDERED);
+        } else if (x instanceof int[]) {
+            Spliterator<?> s = Arrays.spliterator((int[]) x);
+            return (Spliterator<Object>) s;
+        } else if (x instanceof double[]) {
+            Spliterator<?> s = Arrays.spliterator((double[]) x);
+            return (Spliterator<Object>) s;
+        } else if (x instanceof long[]) {
+            return Arrays.stream((long[]) x).mapToObj
+                (new LongFunction<Object> () {
+                        public Object apply(long e) {
+                            return BuiltInFunctions.reg(e);
+                        }
+                    }).spliterator();
+        } else if (x instanceof byte[]) {
+            final byte[] v = (byte[]) x;
+            Spliterator<?> s = IntStream.range(0, v.length).map
+                (new IntUnaryOperator () {
+                        public int applyAsInt(int i) {
+                            return v[i];
+                        }
+                    }).boxed().spliterator();
+            return (Spliterator<Object>) s;
+        } else if (x instanceof char[]) {
+            Spliterator<?> s = CharBuffer.wrap((char[]) x).chars().boxed()
+                .spliterator();
+            return (Spliterator<Object>) s;
+        } else if (x instanceof CharSequence) {
+            Spliterator<?> s = x.toString().chars().boxed().spliterator();
+            return (Spliterator<Object>) s;
+        } else if (x instanceof Iterable) {
+            return ((Iterable<Object>) x).spliterator();
+        } else {
+            throw new EvalException ("sequence expected", x);
+        }
+    }
+
+    /** Lisp の列のストリームを作る。
+     * @param x spliterator(Object) の引数と同じ
+     * @param parallel 真ならば並列ストリームにする。
+     * @return x の各要素からなるストリーム
+     * @throws EvalException x が列ではなかった。
+     */
+    public static Stream<Object> stream(Object x, boolean parallel) {
+        return StreamSupport.stream(spliterator(x), parallel);
+    }
+
+    /** Java のストリームを Lisp の遅延リストにする。
+     * 要素は force されるたびに LL.LAZY_CHUNK_SIZE 個ずつ取り出され，
+     * ストリームを使い切ったら close される。
+     * Long 等の数は Lisp の数 (Integer, BigInteger, Double) にする。
+     * @param s 任意のストリーム (IntStream 等を含む)
+     * @return s の要素の遅延リスト (約束)
+     */
+    public static Object toLazyList(BaseStream<?, ?> s) {
+        return new Promise (new Pull (s.iterator(), s));
+    }
+
+    /** Java のイテレータを Lisp の遅延リストにする。
+     * @param i 任意のイテレータ
+     * @return i の残りの要素の遅延リスト (約束)
+     * @see #toLazyList(BaseStream)
+     */
+    public static Object toLazyList(Iterator<?> i) {
+        return new Promise (new Pull (i, null));
+    }
+
+    // Java の数を Lisp の数にする。
+    private static Object toLisp(Object x) {
+        if (x instanceof Long)
+            return BuiltInFunctions.reg((Long) x);
+        else if (x instanceof Short || x instanceof Byte)
+            return ((Number) x).intValue();
+        else if (x instanceof Float)
+            return ((Number) x).doubleValue();
+        else if (x instanceof BigInteger)
+            return BuiltInFunctions.reg((BigInteger) x);
+        else
+            return x;
+    }
+
+
+    /** イテレータから要素を取り出して遅延リストにする約束の中身 */
+    private static final class Pull extends Promise.Thunk
+    {
+        private final Iterator<?> it;
+        private final BaseStream<?, ?> stream; // 使い切ったら閉じる，または null
+
+        Pull (Iterator<?> it, BaseStream<?, ?> stream) {
+            this.it = it;
+            this.stream = stream;
+        }
+
+        Object force(Promise self) {
+            Cell head = null;
+            Cell tail = null;
+            int count = 0;
+            while (count < LL.LAZY_CHUNK_SIZE && it.hasNext()) {
+                Cell c = new Cell (toLisp(it.next()), null);
+                if (head == null)
+                    head = c;
+                else
+                    tail.cdr = c;
+                tail = c;
+                count++;
+            }
+            Object rest;
+            if (count < LL.LAZY_CHUNK_SIZE) {
+                if (stream != null)
+                    stream.close();
+                rest = null;
+            } else {
+                rest = new Promise (this);
+            }
+            if (head == null)
+                return rest;
+            tail.cdr = rest;
+            return head;
+        }
+    } // Pull
+
+
+    /** リストの Spliterator.
+     * セルを一つずつたどり，詰めた形の後続部分に達したら配列の範囲として
+     * 扱う。trySplit でその範囲に達していれば，以後 SIZED となる。
+     */
+    private static final class ListSpliterator implements Spliterator<Object>
+    {
+        private final Cell list;   // 例外の報告用
+        private Object j;          // 次のセル，Tail，約束，または null
+        private Cell owner = null; // j を cdr とするセル
+        private Object[] elements = null; // j が Compact に達した後の配列
+        private int index;
+        private int fence;
+        private int batch = 0;     // 前回切り出した要素数
+        private boolean sized = false;
+
+        ListSpliterator (Cell list) {
+            this.list = list;
+            j = list;
+        }
+
+        // 次の要素があるかを調べる。必要ならば後続のセルを得る。
+        private boolean ready() {
+            for (;;) {
+                if (elements != null) {
+                    return index < fence;
+                } else if (j instanceof Cell) {
+                    return true;
+                } else if (j == null) {
+                    return false;
+                } else if (j instanceof Cell.Compact) {
+                    Cell.Compact c = (Cell.Compact) j;
+                    elements = c.elements;
+                    index = c.index;
+                    fence = c.elements.length;
+                } else if (j instanceof Cell.Tail) {
+                    j = ((Cell.Tail) j).get(owner);
+                } else if (j instanceof Promise) {
+                    j = ((Promise) j).deliver(); // 約束の連鎖も果たす。
+                } else {
+                    throw new Cell.ProperListExpectedException (list);
+                }
+            }
+        }
+
+        // ready() が真のとき，次の要素を取り出す。
+        private Object next() {
+            if (elements != null) {
+                return elements[index++];
+            } else {
+                Cell c = (Cell) j;
+                owner = c;
+                j = c.cdr;
+                return c.car;
+            }
+        }
+
+        public boolean tryAdvance(Consumer<? super Object> action) {
+            if (! ready())
+                return false;
+            action.accept(next());
+            return true;
+        }
+
+        public void forEachRemaining(Consumer<? super Object> action) {
+            while (ready())
+                action.accept(next());
+        }
+
+        public Spliterator<Object> trySplit() {
+            if (! ready())
+                return null;
+            Spliterator<Object> s;
+            if (elements != null) { // 配列の範囲を半分にする。
+                int mid = (index + fence) >>> 1;
+                if (mid <= index)
+                    return null;
+                s = Spliterators.spliterator(elements, index, mid,
+                                             Spliterator.ORDERED);
+                index = mid;
+            } else {            // セルの並びから塊を写して切り出す。
+                int n = Math.min(batch + BATCH_UNIT, MAX_BATCH);
+                Object[] a = new Object[n];
+                int k = 0;
+                do {
+                    a[k++] = next();
+                } while (k < n && ready() && elements == null);
+                batch = k;
+                s = Spliterators.spliterator(a, 0, k, Spliterator.ORDERED);
+            }
+            sized = (elements != null);
+            return s;
+        }
+
+        public long estimateSize() {
+            return (sized) ? fence - index : Long.MAX_VALUE;
+        }
+
+        public int characteristics() {
+            return (sized) ?
+                Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED :
+                Spliterator.ORDERED;
+        }
+    } // ListSpliterator
+} // Streams
@@ -0,0 +1,217 @@
+// R8.10/19 (鈴)
+package l2lisp;
+
+import java.util.*;
+
+/** defstruct で定義される構造体のインスタンス.
+ * 型と固定長のスロットの配列からなる。
+ */
+public final class Struct
+{
+    final Type type;
+    final Object[] slots;
+
+    /**
+     * @param type 構造体の型
+     * @param slots 各スロットの値 (配列は共有される)
+     */
+    Struct (Type type, Object[] slots) {
+        this.type = type;
+        this.slots = slots;
+    }
+
+    /** 構造体の型を返す。
+     * @return 型
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /** 構造体としての文字列表現を返す。
+     */
+    @Override public String toString() {
+        return LL.str(this);
+    }
+
+    /** LL.str の補助関数
+     */
+    String repr(boolean printQuote, int recLevel, Set<Object> printed) {
+        if (! printed.add(this)) { // 重複していたならば…
+            recLevel--;
+            if (recLevel == 0)
+                return "#S(...)";
+        }
+        StringBuilder sb = new StringBuilder ();
+        sb.append("#S(").append(type.name);
+        for (int i = 0; i < slots.length; i++) {
+            sb.append(" :").append(type.slotNames[i]).append(" ");
+            sb.append(LL.str(slots[i], printQuote, recLevel, printed));
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+
+    /** 値がこの型の構造体であることを確かめる。
+     * @param x 任意の Lisp 値
+     * @param type 期待する型
+     * @return 構造体としての x
+     * @throws EvalException x がその型の構造体ではなかった。
+     */
+    static Struct cast(Object x, Type type) {
+        if (x instanceof Struct && ((Struct) x).type == type)
+            return (Struct) x;
+        else
+            throw new EvalException (type.name + " expected", x);
+    }
+
+    /** (_defstruct name slot-names) の実装。
+     * 構築子 make-NAME，述語 NAME-p，複製 copy-NAME，
+     * 各スロットの読出し NAME-SLOT と書込み set-NAME-SLOT を
+     * 大域変数として定義する。
+     * @param name 構造体の名前
+     * @param slotNames スロット名のリスト
+     * @param interp 関数を定義する Lisp インタープリタ
+     * @return 構造体の型
+     */
+    static Type define(Symbol name, Cell slotNames, IInterp interp) {
+        ArrayList<Symbol> names = new ArrayList<Symbol> ();
+        if (slotNames != null)
+            for (Object e: slotNames) {
+                if (! (e instanceof Symbol) || e instanceof Symbol.Keyword)
+                    throw new EvalException ("slot name expected", e);
+                names.add((Symbol) e);
+            }
+        Type type = new Type (name, names.toArray(new Symbol[0]));
+        Map<Symbol, Object> symbols = interp.getSymbolTable();
+        String s = name.getName();
+        symbols.put(Symbol.of("make-" + s), new Constructor (type));
+        symbols.put(Symbol.of(s + "-p"), new Predicate (type));
+        symbols.put(Symbol.of("copy-" + s), new Copier (type));
+        for (int i = 0; i < type.slotNames.length; i++) {
+            String slot = s + "-" + type.slotNames[i].getName();
+            symbols.put(Symbol.of(slot), new Accessor (type, i, slot));
+            symbols.put(Symbol.of("set-" + slot),
+                        new Setter (type, i, "set-" + slot));
+        }
+        return type;
+    }
+
+
+    /** 構造体の型 */
+    public static final class Type
+    {
+        final Symbol name;
+        final Symbol[] slotNames;
+
+        Type (Symbol name, Symbol[] slotNames) {
+            this.name = name;
+            this.slotNames = slotNames;
+        }
+
+        /** 型の名前を返す。
+         * @return 構造体の名前
+         */
+        public Symbol getName() {
+            return name;
+        }
+
+        @Override public String toString() {
+            return "#<struct-type:" + name + ">";
+        }
+    } // Type
+
+    /** make-NAME: 各スロットの値を順に引数とする構築子 */
+    private static final class Constructor extends Callable
+    {
+        private final Type type;
+
+        Constructor (Type type) {
+            super ("make-" + type.name, type.slotNames.length,
+                   Callable.Option.IS_LAZY);
+            this.type = type;
+            StringBuilder sb = new StringBuilder ("(make-" + type.name);
+            for (Symbol slot: type.slotNames)
+                sb.append(" ").append(slot);
+            doc = sb.append(")").toString();
+        }
+
+        public Object call(Object[] a) {
+            return new Struct (type, a); // 値は約束のままかもしれない
+        }
+    } // Constructor
+
+    /** NAME-p: その型の構造体かどうかの述語 */
+    private static final class Predicate extends Callable
+    {
+        private final Type type;
+
+        Predicate (Type type) {
+            super (type.name + "-p", 1);
+            this.type = type;
+        }
+
+        public Object call(Object[] a) {
+            Object x = a[0];
+            return (x instanceof Struct && ((Struct) x).type == type) ?
+                LL.S_T : null;
+        }
+    } // Predicate
+
+    /** copy-NAME: スロットの値を共有する複製を作る */
+    private static final class Copier extends Callable
+    {
+        private final Type type;
+
+        Copier (Type type) {
+            super ("copy-" + type.name, 1);
+            this.type = type;
+        }
+
+        public Object call(Object[] a) {
+            Struct s = cast(a[0], type);
+            return new Struct (type, s.slots.clone());
+        }
+    } // Copier
+
+    /** NAME-SLOT: スロットの読出し.
+     * Interp は，関数本体のコンパイル時にこの呼出しを直接の
+     * スロットの読出しに置き換える。
+     */
+    static final class Accessor extends Callable
+    {
+        final Type type;
+        final int index;
+
+        Accessor (Type type, int index, String name) {
+            super (name, 1);
+            this.type = type;
+            this.index = index;
+        }
+
+        public Object call(Object[] a) {
+            return cast(a[0], type).slots[index];
+        }
+    } // Accessor
+
+    /** set-NAME-SLOT: スロットの書込み.
+     * Interp は，関数本体のコンパイル時にこの呼出しを直接の
+     * スロットへの代入に置き換える。
+     */
+    static final class Setter extends Callable
+    {
+        final Type type;
+        final int index;
+
+        Setter (Type type, int index, String name) {
+            super (name, 2, Callable.Option.IS_LAZY);
+            this.type = type;
+            this.index = index;
+        }
+
+        public Object call(Object[] a) {
+            Struct s = cast(LL.force(a[0]), type);
+            s.slots[index] = a[1];
+            return a[1];        // 値は約束のままかもしれない
+        }
+    } // Setter
+} // Struct
@@ -1,18 +1,40 @@
-// H22.8/17, H30.4/8 (鈴)
+// H22.8/17, H30.4/8, R8.10/19 (鈴)
 package l2lisp;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /** Lisp のシンボル
+ * <p>
+ * シンボルの一意性は印字名からの表で保つ。表は ConcurrentHashMap だから，
+ * 既にあるシンボルの検索はロックを取らず，複数のスレッドが同時に
+ * 読み取っても互いに待たない。
+ * 表はキーワードを強く，その他のシンボルを弱参照で持つ。
+ * 大域変数の値を持つシンボルは大域変数の表から参照されているから
+ * 回収されない。どこからも参照されなくなったシンボルは回収され，
+ * 次に同じ印字名で of を呼ぶと新しく作られる。それを前のシンボルと
+ * 比べられる者はいないから，一意性は損なわれない。
  */
 public class Symbol implements Comparable<Symbol>
 {
     /** シンボルの印字名 */
     private final String name;
 
-    /** シンボルの一意性を保つための表 */
-    private static final Map<String, Symbol> dict
-        = new HashMap<String, Symbol> ();
+    /** シンボルの一意性を保つための表.
+     * 値は Keyword または SymbolRef である。
+     */
+    private static final ConcurrentHashMap<String, Object> dict
+        = new ConcurrentHashMap<String, Object> ();
+
+    /** 回収されたシンボルの SymbolRef が入る。*/
+    private static final ReferenceQueue<Symbol> collected
+        = new ReferenceQueue<Symbol> ();
+
+    /** gensym の通し番号 */
+    private static final AtomicLong gensymCounter = new AtomicLong ();
 
     /** 印字名からシンボルを構築する。
      */
@@ -32,16 +54,73 @@ public class Symbol implements Comparable<Symbol>
      * @return 印字名に対する Symbol の一意的なオブジェクト
      */
     public static Symbol of(String name) {
-        synchronized (dict) {
-            Symbol sym = dict.get(name);
-            if (sym == null) {
+        Object v = dict.get(name);
+        for (;;) {
+            if (v == null) {
+                Symbol sym = new Symbol (name);
+                v = dict.putIfAbsent(name, new SymbolRef (sym));
+                if (v == null) {
+                    expunge();
+                    return sym;
+                }
+            } else if (v instanceof Symbol) { // キーワード
+                return (Symbol) v;
+            } else {
+                Symbol sym = ((SymbolRef) v).get();
+                if (sym != null)
+                    return sym;
                 sym = new Symbol (name);
-                dict.put(name, sym);
+                if (dict.replace(name, v, new SymbolRef (sym)))
+                    return sym;
+                v = dict.get(name);
             }
-            return sym;
         }
     }
 
+    /** 印字名に対するシンボルを返す。まだなければキーワードとして作る。
+     * @param name 印字名
+     * @return 既にあるシンボル，または新しい Keyword
+     */
+    static Symbol keyword(String name) {
+        Object v = dict.get(name);
+        if (v instanceof Symbol)
+            return (Symbol) v;
+        if (v != null) {
+            Symbol sym = ((SymbolRef) v).get();
+            if (sym != null)
+                return sym;
+        }
+        try {
+            return Keyword.of(name);
+        } catch (IllegalArgumentException ex) { // 別のスレッドが作った。
+            return of(name);
+        }
+    }
+
+    /** 表に登録しないシンボルを作る。
+     * 同じ印字名のシンボルとも，どのシンボルとも eq でない。
+     * @param name 印字名
+     * @return 新しいシンボル
+     */
+    public static Symbol uninterned(String name) {
+        return new Symbol (name);
+    }
+
+    /** (gensym) 用に，表に登録しない新しいシンボルを作る。
+     * @param prefix 印字名の接頭辞
+     * @return 印字名が prefix と通し番号からなる新しいシンボル
+     */
+    public static Symbol gensym(String prefix) {
+        return new Symbol (prefix + gensymCounter.incrementAndGet());
+    }
+
+    // 回収されたシンボルの項目を表から除く。
+    private static void expunge() {
+        SymbolRef r;
+        while ((r = (SymbolRef) collected.poll()) != null)
+            dict.remove(r.name, r); // 作り直されていれば除かない。
+    }
+
     /** 印字名をそのまま返す。
      */
     @Override public String toString() {
@@ -74,15 +153,28 @@ public class Symbol implements Comparable<Symbol>
          * @return 印字名に対する Keyword の一意的なオブジェクト
          */
         public static Keyword of(String name) {
-            synchronized (dict) {
-                if (dict.containsKey(name)) {
+            Keyword sym = new Keyword (name);
+            Object v = dict.putIfAbsent(name, sym);
+            while (v != null) {
+                if (v instanceof Symbol || ((SymbolRef) v).get() != null)
                     throw new IllegalArgumentException (name);
-                } else {
-                    Keyword sym = new Keyword (name);
-                    dict.put(name, sym);
-                    return sym;
-                }
+                if (dict.replace(name, v, sym)) // 回収済みならば置き換える。
+                    break;
+                v = dict.putIfAbsent(name, sym);
             }
+            return sym;
         }
     } // Keyword
+
+
+    /** 表からシンボルへの弱参照 */
+    private static final class SymbolRef extends WeakReference<Symbol>
+    {
+        final String name;
+
+        SymbolRef (Symbol sym) {
+            super (sym, collected);
+            name = sym.name;
+        }
+    } // SymbolRef
 } // Symbol
@@ -0,0 +1,104 @@
+// R8.10/19 (鈴)
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import l2lisp.*;
+
+/** 一つのインタープリタを多数のスレッドで同時に使う負荷試験.
+ * 各回で共有のリスト等を作り直し，各スレッドに次を評価させる。
+ * <ul>
+ * <li> スレッドごとの大域変数への setq の繰返し
+ * <li> 共有の CDR 符号化されたリストに対する dolist
+ * <li> 共有の遅延 map の nth
+ * <li> 共有の約束の force (評価が一度だけか調べる)
+ * <li> 共有のリストの同じ位置を同時に実体化したセルの eq
+ * <li> スレッドごとの defun と再帰呼出し
+ * </ul>
+ * 全スレッドの結果が一致しなければ終了状態 1 で終わる。
+ * make test で
+ * java -cp l2lisp.jar:test MTStress [スレッド数 [回数]]
+ * として走らせる。
+ */
+public class MTStress
+{
+    public static void main(String[] args) throws Exception {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        final Interp interp = new Interp ();
+        interp.load(BuiltInFunctions.FUNCTIONS);
+        interp.run(new LinesFromInputStream
+                   (LL.class.getResourceAsStream("Prelude.l")), null);
+        interp.run("(defun drop (n x)"
+                   + " (while (> n 0) (setq x (cdr x)) (setq n (- n 1)))"
+                   + " x)");
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            for (int r = 0; r < rounds; r++) {
+                interp.run("(setq big (mapcar (lambda (x) x) (range 0 20000)))"
+                           + "(setq lz (map (lambda (x) (* x 2))"
+                           + " (range 0 20000)))"
+                           + "(setq forced 0)"
+                           + "(setq p (delay (progn"
+                           + " (setq forced (+ forced 1)) 42)))");
+                List<Future<String>> futures = new ArrayList<Future<String>> ();
+                for (int t = 0; t < threads; t++)
+                    futures.add(workers.submit(new Job (interp, t)));
+                Set<String> results = new TreeSet<String> ();
+                for (Future<String> f: futures)
+                    results.add(f.get());
+                Object forced = interp.run("forced");
+                if (results.size() != 1 || ! Integer.valueOf(1).equals(forced)) {
+                    System.out.println("FAILED round " + r + " " + results
+                                       + " forced=" + forced);
+                    System.exit(1);
+                }
+                if (r == 0)
+                    System.out.println(results);
+            }
+        } finally {
+            workers.shutdown();
+        }
+        System.out.println("(ok mt-stress " + threads + " threads "
+                           + rounds + " rounds)");
+    }
+
+
+    /** 一つのスレッドの評価 */
+    private static final class Job implements Callable<String>
+    {
+        private final Interp interp;
+        private final int id;
+
+        Job (Interp interp, int id) {
+            this.interp = interp;
+            this.id = id;
+        }
+
+        public String call() throws Exception {
+            String v = "g" + id;
+            String f = "f" + id;
+            StringBuilder sb = new StringBuilder ();
+            sb.append(interp.run("(setq " + v + " 0)"
+                                 + "(let ((i 0))"
+                                 + " (while (< i 2000)"
+                                 + " (setq " + v + " (+ " + v + " 1))"
+                                 + " (setq i (+ i 1))))"
+                                 + v));
+            sb.append(' ').append
+                (interp.run("(let ((s 0)) (dolist (x big) (setq s (+ s x))) s)"));
+            sb.append(' ').append(interp.run("(nth 19999 lz)"));
+            sb.append(' ').append(interp.run("(force p)"));
+            sb.append(' ').append(interp.run("(length big)"));
+            sb.append(' ').append
+                (interp.run("(eq (cdr (drop 5000 big)) (drop 5001 big))"));
+            sb.append(' ').append
+                (interp.run("(defun " + f + " (n)"
+                            + " (if (= n 0) 0 (+ 1 (" + f + " (- n 1)))))"
+                            + "(" + f + " 500)"));
+            return sb.toString();
+        }
+    } // Job
+} // MTStress